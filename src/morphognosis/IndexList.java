@@ -0,0 +1,97 @@
+// For conditions of distribution and use, see copyright notice in Morphognosis.java
+
+package morphognosis;
+
+import java.util.Arrays;
+
+// Growable list of int indexes.
+public class IndexList
+{
+   public int[] indexes;
+   public int   size;
+
+   // Constructors.
+   public IndexList()
+   {
+      indexes = new int[2];
+      size    = 0;
+   }
+
+
+   public IndexList(int[] indexes, int from, int to)
+   {
+      this.indexes = Arrays.copyOfRange(indexes, from, Math.max(to, from + 2));
+      size         = to - from;
+   }
+
+
+   // Size.
+   public int size()
+   {
+      return(size);
+   }
+
+
+   // Get index.
+   public int get(int i)
+   {
+      if (i >= size)
+      {
+         throw new IndexOutOfBoundsException("Index " + i + " out of bounds for size " + size);
+      }
+      return(indexes[i]);
+   }
+
+
+   // Set index.
+   public void set(int i, int index)
+   {
+      if (i >= size)
+      {
+         throw new IndexOutOfBoundsException("Index " + i + " out of bounds for size " + size);
+      }
+      indexes[i] = index;
+   }
+
+
+   // Add index.
+   public void add(int index)
+   {
+      if (size == indexes.length)
+      {
+         indexes = Arrays.copyOf(indexes, size + (size >> 1) + 1);
+      }
+      indexes[size++] = index;
+   }
+
+
+   // Contains index?
+   public boolean contains(int index)
+   {
+      for (int i = 0; i < size; i++)
+      {
+         if (indexes[i] == index)
+         {
+            return(true);
+         }
+      }
+      return(false);
+   }
+
+
+   // Truncate to size.
+   public void truncate(int size)
+   {
+      if (size < this.size)
+      {
+         this.size = size;
+      }
+   }
+
+
+   // Clear.
+   public void clear()
+   {
+      size = 0;
+   }
+}
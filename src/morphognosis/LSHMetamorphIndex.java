@@ -0,0 +1,311 @@
+// For conditions of distribution and use, see copyright notice in Morphognosis.java
+
+package morphognosis;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Random;
+
+// Locality-sensitive hashing metamorph index.
+// Approximate: only metamorphs sharing a hash bucket with the morphognostic
+// in some table are searched, in index order, so the nearest metamorphs can
+// be missed. If no metamorph shares a bucket all metamorphs are searched.
+// Each table hashes a density vector to TABLE_BITS bits, each bit testing
+// whether a randomly chosen density exceeds a random threshold within the
+// range of that density over the indexed metamorphs. For binary densities
+// this samples density bits, and the probability of a bit collision falls
+// with the L1 distance in either case. Densities that do not vary, which
+// are most of them in sparse morphognostics, are not chosen. The hash
+// functions are redrawn, and the metamorphs rehashed, as the index doubles.
+// More tables raise recall and cost. Probing also the buckets differing in
+// the PROBES bits nearest their thresholds raises recall at a lower cost.
+public class LSHMetamorphIndex extends MetamorphIndex
+{
+   // Number of hash tables.
+   public static int TABLES = 8;
+
+   // Bits per hash, at most 64.
+   public static int TABLE_BITS = 32;
+
+   // Additional buckets probed per table, at most TABLE_BITS.
+   public static int PROBES = 0;
+
+   // Hash function random seed.
+   public static int RANDOM_SEED = 4517;
+
+   // Hash functions: density coordinates and thresholds per table bit.
+   public int[][]   coordinates;
+   public float[][] thresholds;
+
+   // Hash tables.
+   public ArrayList<HashMap<Long, Bucket>> tables;
+
+   // Number of metamorphs when hash functions were drawn.
+   public int hashedSize;
+
+   // Hash bucket.
+   public static class Bucket
+   {
+      public int[] indexes;
+      public int   size;
+
+      public Bucket()
+      {
+         indexes = new int[4];
+         size    = 0;
+      }
+
+
+      public void add(int index)
+      {
+         if (size == indexes.length)
+         {
+            indexes = Arrays.copyOf(indexes, size * 2);
+         }
+         indexes[size++] = index;
+      }
+   }
+
+   // Search candidates, in index order, and marks: a metamorph is a candidate
+   // if marked with the search number.
+   public int[]  candidates;
+   public int    numCandidates;
+   private int[] marks;
+   private int   searchNumber;
+
+   @Override
+   public int getType()
+   {
+      return(LSH);
+   }
+
+
+   @Override
+   protected void reset()
+   {
+      coordinates = null;
+      thresholds  = null;
+      tables      = null;
+      hashedSize  = 0;
+      candidates  = null;
+      marks       = null;
+   }
+
+
+   @Override
+   protected void add(int index)
+   {
+      if ((tables == null) || (index >= hashedSize * 2))
+      {
+         rehash(index + 1);
+      }
+      else
+      {
+         hash(index);
+      }
+   }
+
+
+   // Hash metamorph into tables.
+   private void hash(int index)
+   {
+      float[] densities = metamorphs.get(index).getDensityVector();
+
+      for (int i = 0; i < TABLES; i++)
+      {
+         Long   key    = hash(i, densities);
+         Bucket bucket = tables.get(i).get(key);
+         if (bucket == null)
+         {
+            bucket = new Bucket();
+            tables.get(i).put(key, bucket);
+         }
+         bucket.add(index);
+      }
+   }
+
+
+   // Draw hash functions for the first size metamorphs and hash them.
+   private void rehash(int size)
+   {
+      int     length = metamorphs.get(0).getDensityVector().length;
+      float[] min    = new float[length];
+      float[] max    = new float[length];
+
+      Arrays.fill(min, Float.POSITIVE_INFINITY);
+      Arrays.fill(max, Float.NEGATIVE_INFINITY);
+      for (int i = 0; i < size; i++)
+      {
+         float[] densities = metamorphs.get(i).getDensityVector();
+         for (int j = 0; j < length; j++)
+         {
+            min[j] = Math.min(min[j], densities[j]);
+            max[j] = Math.max(max[j], densities[j]);
+         }
+      }
+      int[] varying    = new int[length];
+      int   numVarying = 0;
+      for (int j = 0; j < length; j++)
+      {
+         if (min[j] < max[j])
+         {
+            varying[numVarying++] = j;
+         }
+      }
+      Random random = new Random(RANDOM_SEED);
+      int    n      = Math.min(Math.max(TABLE_BITS, 1), 64);
+      coordinates = new int[TABLES][n];
+      thresholds  = new float[TABLES][n];
+      tables      = new ArrayList<HashMap<Long, Bucket>>(TABLES);
+      for (int i = 0; i < TABLES; i++)
+      {
+         for (int j = 0; j < n; j++)
+         {
+            int c;
+            if (numVarying > 0)
+            {
+               c = varying[random.nextInt(numVarying)];
+               thresholds[i][j] = min[c] + (max[c] - min[c]) * random.nextFloat();
+            }
+            else
+            {
+               c = random.nextInt(length);
+               thresholds[i][j] = random.nextFloat();
+            }
+            coordinates[i][j] = c;
+         }
+         tables.add(new HashMap<Long, Bucket>());
+      }
+      hashedSize = size;
+      for (int i = 0; i < size; i++)
+      {
+         hash(i);
+      }
+   }
+
+
+   // Hash density vector for table.
+   private long hash(int table, float[] densities)
+   {
+      int[]   c    = coordinates[table];
+      float[] t    = thresholds[table];
+      long    hash = 0;
+
+      for (int i = 0; i < c.length; i++)
+      {
+         if (densities[c[i]] > t[i])
+         {
+            hash |= 1L << i;
+         }
+      }
+      return(hash);
+   }
+
+
+   // Find candidate metamorphs sharing probed buckets with the morphognostic.
+   // If there are none, all metamorphs are candidates.
+   private void findCandidates(Morphognostic morphognostic)
+   {
+      int size = metamorphs.size();
+
+      if ((marks == null) || (marks.length < size))
+      {
+         marks        = new int[Math.max(size, 16) * 2];
+         candidates   = new int[marks.length];
+         searchNumber = 0;
+      }
+      searchNumber++;
+      numCandidates = 0;
+      if (tables != null)
+      {
+         float[] densities = morphognostic.getDensityVector();
+         int     n         = coordinates[0].length;
+         int     probes    = Math.min(Math.max(PROBES, 0), n);
+         long[]  entries   = new long[n];
+         for (int i = 0; i < TABLES; i++)
+         {
+            long hash = hash(i, densities);
+            if (probes > 0)
+            {
+               // Order bits by the distance of their densities from their thresholds.
+               for (int j = 0; j < n; j++)
+               {
+                  float margin = Math.abs(densities[coordinates[i][j]] - thresholds[i][j]);
+                  entries[j] = ((long)Float.floatToIntBits(margin) << 8) | j;
+               }
+               Arrays.sort(entries);
+            }
+            for (int p = -1; p < probes; p++)
+            {
+               long   key    = (p == -1) ? hash : (hash ^ (1L << (int)(entries[p] & 0xff)));
+               Bucket bucket = tables.get(i).get(key);
+               if (bucket != null)
+               {
+                  for (int j = 0; j < bucket.size; j++)
+                  {
+                     int index = bucket.indexes[j];
+                     if (marks[index] != searchNumber)
+                     {
+                        marks[index] = searchNumber;
+                        candidates[numCandidates++] = index;
+                     }
+                  }
+               }
+            }
+         }
+         Arrays.sort(candidates, 0, numCandidates);
+      }
+      if (numCandidates == 0)
+      {
+         for (int i = 0; i < size; i++)
+         {
+            candidates[i] = i;
+         }
+         numCandidates = size;
+      }
+   }
+
+
+   @Override
+   public void nearest(Morphognostic morphognostic, int limit, SearchResult result)
+   {
+      float best = Float.POSITIVE_INFINITY;
+
+      findCandidates(morphognostic);
+      result.clear();
+      for (int i = 0; (i < numCandidates) && (candidates[i] < limit); i++)
+      {
+         float d = distance(morphognostic, candidates[i]);
+         if (d < best)
+         {
+            best = d;
+            result.clear();
+         }
+         if (d == best)
+         {
+            result.add(candidates[i], d);
+         }
+      }
+   }
+
+
+   // Search candidates in one pass.
+   @Override
+   public void search(Morphognostic morphognostic, SearchResult result)
+   {
+      float best = 0.0f;
+
+      findCandidates(morphognostic);
+      result.clear();
+      for (int i = 0; i < numCandidates; i++)
+      {
+         float d = distance(morphognostic, candidates[i]);
+         if ((i == 0) || (d <= best))
+         {
+            best = d;
+            result.add(candidates[i], d);
+         }
+      }
+   }
+}
@@ -0,0 +1,161 @@
+// For conditions of distribution and use, see copyright notice in Morphognosis.java
+
+package morphognosis;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+// Linear scan metamorph index.
+// Searches of at least PARALLEL_THRESHOLD metamorphs are split into chunks
+// scanned in parallel, each finding its own running minimum candidates. Chunk
+// candidates are merged in order by keeping those at or below the minimum
+// distance of the preceding chunks, which gives the sequential scan result.
+// Other metamorph scans, such as of a mapped metamorph DB, search in parallel
+// through a range search.
+public class LinearMetamorphIndex extends MetamorphIndex
+{
+   // Minimum number of metamorphs for parallel search, 0 to disable.
+   public static int PARALLEL_THRESHOLD = 10000;
+
+   // Maximum parallel search chunk size.
+   public static int PARALLEL_CHUNK_SIZE = 2048;
+
+   // Range search: finds the metamorphs in a range at or below the running
+   // minimum distance from the start of the range, in index order.
+   public interface RangeSearch
+   {
+      public void search(int start, int end, SearchResult result);
+   }
+
+   @Override
+   public int getType()
+   {
+      return(LINEAR);
+   }
+
+
+   @Override
+   protected void add(int index) {}
+
+   @Override
+   protected void reset() {}
+
+   @Override
+   public void nearest(Morphognostic morphognostic, int limit, SearchResult result)
+   {
+      float best = Float.POSITIVE_INFINITY;
+
+      result.clear();
+      for (int i = 0; i < limit; i++)
+      {
+         float d = distance(morphognostic, i);
+         if (d < best)
+         {
+            best = d;
+            result.clear();
+         }
+         if (d == best)
+         {
+            result.add(i, d);
+         }
+      }
+   }
+
+
+   // Search in one pass.
+   @Override
+   public void search(Morphognostic morphognostic, SearchResult result)
+   {
+      // Density vectors are cached on first use, so prepare them before sharing.
+      morphognostic.getDensityVector();
+      search(metamorphs.size(), (start, end, chunk) -> search(morphognostic, start, end, chunk), result);
+   }
+
+
+   // Search metamorphs 0 to n - 1 by range search, in parallel chunks
+   // if there are at least PARALLEL_THRESHOLD.
+   public static void search(int n, RangeSearch range, SearchResult result)
+   {
+      if ((PARALLEL_THRESHOLD > 0) && (n >= PARALLEL_THRESHOLD))
+      {
+         SearchResult chunks = ForkJoinPool.commonPool().invoke(new SearchTask(range, 0, n));
+         result.clear();
+         for (int i = 0; i < chunks.size; i++)
+         {
+            result.add(chunks.indexes[i], chunks.distances[i]);
+         }
+      }
+      else
+      {
+         range.search(0, n, result);
+      }
+   }
+
+
+   // Search range of metamorphs.
+   private void search(Morphognostic morphognostic, int start, int end, SearchResult result)
+   {
+      float best = 0.0f;
+
+      result.clear();
+      for (int i = start; i < end; i++)
+      {
+         float d = distance(morphognostic, i);
+         if ((i == start) || (d <= best))
+         {
+            best = d;
+            result.add(i, d);
+         }
+      }
+   }
+
+
+   // Parallel search task.
+   private static class SearchTask extends RecursiveTask<SearchResult>
+   {
+      private static final long serialVersionUID = 1L;
+
+      RangeSearch range;
+      int         start, end;
+
+      SearchTask(RangeSearch range, int start, int end)
+      {
+         this.range = range;
+         this.start = start;
+         this.end   = end;
+      }
+
+
+      @Override
+      protected SearchResult compute()
+      {
+         if (end - start <= PARALLEL_CHUNK_SIZE)
+         {
+            SearchResult result = new SearchResult();
+            range.search(start, end, result);
+            return(result);
+         }
+         int        mid   = (start + end) >>> 1;
+         SearchTask right = new SearchTask(range, mid, end);
+         right.fork();
+         SearchResult result = new SearchTask(range, start, mid).compute();
+         SearchResult result2 = right.join();
+
+         // Merge: later candidates must be within the minimum so far,
+         // which is the distance of the last candidate.
+         if (result.size == 0)
+         {
+            return(result2);
+         }
+         float best = result.distances[result.size - 1];
+         for (int i = 0; i < result2.size; i++)
+         {
+            if (result2.distances[i] <= best)
+            {
+               result.add(result2.indexes[i], result2.distances[i]);
+            }
+         }
+         return(result);
+      }
+   }
+}
@@ -0,0 +1,109 @@
+// For conditions of distribution and use, see copyright notice in Morphognosis.java
+
+package morphognosis;
+
+import java.util.Arrays;
+
+// Set of cause to effect metamorph links.
+// Open addressing hash set of links packed as cause and effect index pairs.
+public class LinkSet
+{
+   // Empty slot: not a valid link since indexes are non-negative.
+   private static final long EMPTY = -1L;
+
+   public long[] links;
+   public int    size;
+
+   // Constructor.
+   public LinkSet()
+   {
+      links = new long[16];
+      Arrays.fill(links, EMPTY);
+      size = 0;
+   }
+
+
+   // Add link, returning false if already present.
+   public boolean add(int cause, int effect)
+   {
+      if ((size + 1) * 2 > links.length)
+      {
+         grow();
+      }
+      long link = key(cause, effect);
+      int  i    = slot(link);
+      while (links[i] != EMPTY)
+      {
+         if (links[i] == link)
+         {
+            return(false);
+         }
+         i = (i + 1) & (links.length - 1);
+      }
+      links[i] = link;
+      size++;
+      return(true);
+   }
+
+
+   // Contains link?
+   public boolean contains(int cause, int effect)
+   {
+      long link = key(cause, effect);
+
+      for (int i = slot(link); links[i] != EMPTY; i = (i + 1) & (links.length - 1))
+      {
+         if (links[i] == link)
+         {
+            return(true);
+         }
+      }
+      return(false);
+   }
+
+
+   // Clear.
+   public void clear()
+   {
+      Arrays.fill(links, EMPTY);
+      size = 0;
+   }
+
+
+   // Link key.
+   private static long key(int cause, int effect)
+   {
+      return(((long)cause << 32) | (effect & 0xffffffffL));
+   }
+
+
+   // Home slot of link.
+   private int slot(long link)
+   {
+      long h = link * 0x9E3779B97F4A7C15L;
+
+      return((int)(h >>> 32) & (links.length - 1));
+   }
+
+
+   // Double capacity.
+   private void grow()
+   {
+      long[] old = links;
+
+      links = new long[old.length * 2];
+      Arrays.fill(links, EMPTY);
+      for (long link : old)
+      {
+         if (link != EMPTY)
+         {
+            int i = slot(link);
+            while (links[i] != EMPTY)
+            {
+               i = (i + 1) & (links.length - 1);
+            }
+            links[i] = link;
+         }
+      }
+   }
+}
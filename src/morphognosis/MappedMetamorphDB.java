@@ -0,0 +1,358 @@
+// For conditions of distribution and use, see copyright notice in Morphognosis.java
+
+package morphognosis;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+
+// Memory-mapped read-only metamorph database file.
+// Metamorphs are searched in place through the page cache, without being
+// loaded into objects. The file is big-endian:
+//   header: magic, version, number of metamorphs, density vector length,
+//           then the positions of the density block, response column,
+//           goal value column and signature block
+//   density block: density vectors, one fixed-stride row per metamorph
+//   response column: int per metamorph
+//   goal value column: float per metamorph
+//   signature block: per metamorph, a flag word set when its densities are
+//           all 0 or 1, and the density signature words, 8-byte aligned
+// Version 1 files have no signature block.
+// Searches compare by signature bit count when the morphognostic and the
+// metamorph both have signatures, as Morphognostic.compare does, and scan
+// in parallel chunks as LinearMetamorphIndex does.
+// Cause and effect links are not written, since goal values are not
+// propagated through a read-only database.
+// Since a mapped buffer cannot exceed 2GB, each section is mapped in chunks
+// of whole rows.
+public class MappedMetamorphDB
+{
+   // File identification.
+   public static final int MAGIC   = 0x4d4d4442;
+   public static final int VERSION = 2;
+
+   // Header size.
+   public static final int HEADER_SIZE = 64;
+
+   // Maximum bytes per mapped chunk.
+   public static int MAX_CHUNK_BYTES = Integer.MAX_VALUE;
+
+   // Number of metamorphs and density vector length.
+   public int numMetamorphs;
+   public int vectorLength;
+
+   // Mapped sections: chunks and rows per chunk.
+   public FloatBuffer[] densities;
+   public int           densityChunkRows;
+   public IntBuffer[]   responses;
+   public FloatBuffer[] goalValues;
+   public int           columnChunkRows;
+   public LongBuffer[]  signatures;
+   public int           signatureChunkRows;
+
+   // Signature words per metamorph.
+   public int signatureLength;
+
+   // Open file.
+   public MappedMetamorphDB(String filename) throws IOException
+   {
+      RandomAccessFile file = new RandomAccessFile(new File(filename), "r");
+
+      try
+      {
+         FileChannel channel = file.getChannel();
+         if (channel.size() < HEADER_SIZE)
+         {
+            throw new IOException("Invalid metamorph DB file " + filename);
+         }
+         ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+         if (header.getInt() != MAGIC)
+         {
+            throw new IOException("Invalid metamorph DB file " + filename);
+         }
+         int version = header.getInt();
+         if ((version < 1) || (version > VERSION))
+         {
+            throw new IOException("Unsupported metamorph DB file " + filename + " version " + version +
+                                  ", expected at most " + VERSION);
+         }
+         numMetamorphs   = header.getInt();
+         vectorLength    = header.getInt();
+         signatureLength = (vectorLength + 63) / 64;
+         long densityPosition   = header.getLong();
+         long responsePosition  = header.getLong();
+         long goalPosition      = header.getLong();
+         long signaturePosition = getSignaturePosition(goalPosition, numMetamorphs);
+         long end = signaturePosition;
+         if (version >= 2)
+         {
+            end = signaturePosition + (long)numMetamorphs * (signatureLength + 1) * 8;
+            if (header.getLong() != signaturePosition)
+            {
+               throw new IOException("Invalid metamorph DB file " + filename);
+            }
+         }
+         if ((numMetamorphs < 0) || (vectorLength < 0) ||
+             (densityPosition != HEADER_SIZE) ||
+             (responsePosition != densityPosition + (long)numMetamorphs * vectorLength * 4) ||
+             (goalPosition != responsePosition + (long)numMetamorphs * 4) ||
+             (channel.size() < goalPosition + (long)numMetamorphs * 4) ||
+             (channel.size() < end))
+         {
+            throw new IOException("Invalid metamorph DB file " + filename);
+         }
+
+         // Map sections.
+         int stride = Math.max(vectorLength, 1) * 4;
+         densityChunkRows = Math.max(MAX_CHUNK_BYTES / stride, 1);
+         columnChunkRows  = Math.max(MAX_CHUNK_BYTES / 4, 1);
+         ByteBuffer[] chunks = map(channel, densityPosition, numMetamorphs, vectorLength * 4, densityChunkRows);
+         densities = new FloatBuffer[chunks.length];
+         for (int i = 0; i < chunks.length; i++)
+         {
+            densities[i] = chunks[i].asFloatBuffer();
+         }
+         responses  = mapInts(channel, responsePosition, numMetamorphs);
+         goalValues = new FloatBuffer[responses.length];
+         chunks     = map(channel, goalPosition, numMetamorphs, 4, columnChunkRows);
+         for (int i = 0; i < chunks.length; i++)
+         {
+            goalValues[i] = chunks[i].asFloatBuffer();
+         }
+         if (version >= 2)
+         {
+            int signatureStride = (signatureLength + 1) * 8;
+            signatureChunkRows = Math.max(MAX_CHUNK_BYTES / signatureStride, 1);
+            chunks             = map(channel, signaturePosition, numMetamorphs, signatureStride, signatureChunkRows);
+            signatures         = new LongBuffer[chunks.length];
+            for (int i = 0; i < chunks.length; i++)
+            {
+               signatures[i] = chunks[i].asLongBuffer();
+            }
+         }
+      }
+      finally
+      {
+         // Mappings remain valid after the file is closed.
+         file.close();
+      }
+   }
+
+
+   // Map count rows of size bytes in chunks of rows.
+   private static ByteBuffer[] map(FileChannel channel, long position, long count,
+                                   int size, int chunkRows) throws IOException
+   {
+      int          n      = (int)((count + chunkRows - 1) / chunkRows);
+      ByteBuffer[] chunks = new ByteBuffer[n];
+
+      for (int i = 0; i < n; i++)
+      {
+         long rows = Math.min(chunkRows, count - (long)i * chunkRows);
+         chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY,
+                                 position + (long)i * chunkRows * size, rows * size);
+      }
+      return(chunks);
+   }
+
+
+   private IntBuffer[] mapInts(FileChannel channel, long position, long count) throws IOException
+   {
+      ByteBuffer[] chunks  = map(channel, position, count, 4, columnChunkRows);
+      IntBuffer[]  buffers = new IntBuffer[chunks.length];
+
+      for (int i = 0; i < chunks.length; i++)
+      {
+         buffers[i] = chunks[i].asIntBuffer();
+      }
+      return(buffers);
+   }
+
+
+   // Position of signature block following goal value column, 8-byte aligned.
+   private static long getSignaturePosition(long goalPosition, int numMetamorphs)
+   {
+      return((goalPosition + (long)numMetamorphs * 4 + 7) & ~7L);
+   }
+
+
+   // Write metamorphs to file.
+   public static void write(String filename, List<Metamorph> metamorphs) throws IOException
+   {
+      int n            = metamorphs.size();
+      int vectorLength = 0;
+
+      if (n > 0)
+      {
+         vectorLength = metamorphs.get(0).getDensityVector().length;
+      }
+      long densityPosition  = HEADER_SIZE;
+      long responsePosition = densityPosition + (long)n * vectorLength * 4;
+      long goalPosition     = responsePosition + (long)n * 4;
+      long signaturePosition = getSignaturePosition(goalPosition, n);
+      int  signatureLength   = (vectorLength + 63) / 64;
+      DataOutputStream output = new DataOutputStream(new BufferedOutputStream(
+                                                        new FileOutputStream(new File(filename)), 1 << 16));
+      try
+      {
+         // Header.
+         output.writeInt(MAGIC);
+         output.writeInt(VERSION);
+         output.writeInt(n);
+         output.writeInt(vectorLength);
+         output.writeLong(densityPosition);
+         output.writeLong(responsePosition);
+         output.writeLong(goalPosition);
+         output.writeLong(signaturePosition);
+         for (int i = output.size(); i < HEADER_SIZE; i++)
+         {
+            output.writeByte(0);
+         }
+
+         // Density block.
+         for (Metamorph m : metamorphs)
+         {
+            float[] densities = m.getDensityVector();
+            if (densities.length != vectorLength)
+            {
+               throw new IOException("Metamorph density vectors differ in length");
+            }
+            for (float density : densities)
+            {
+               output.writeFloat(density);
+            }
+         }
+
+         // Columns.
+         for (Metamorph m : metamorphs)
+         {
+            output.writeInt(m.response);
+         }
+         for (Metamorph m : metamorphs)
+         {
+            output.writeFloat(m.goalValue);
+         }
+
+         // Signature block.
+         while (output.size() < signaturePosition)
+         {
+            output.writeByte(0);
+         }
+         for (Metamorph m : metamorphs)
+         {
+            long[] signature = MorphognosticSnapshot.createSignature(m.getDensityVector());
+            output.writeLong(signature != null ? 1L : 0L);
+            for (int i = 0; i < signatureLength; i++)
+            {
+               output.writeLong(signature != null ? signature[i] : 0L);
+            }
+         }
+      }
+      finally
+      {
+         output.close();
+      }
+   }
+
+
+   // Number of metamorphs.
+   public int size()
+   {
+      return(numMetamorphs);
+   }
+
+
+   // Get density vector of metamorph.
+   public float[] getDensities(int index, float[] vector)
+   {
+      if (vector == null)
+      {
+         vector = new float[vectorLength];
+      }
+      FloatBuffer buffer = densities[index / densityChunkRows].duplicate();
+      buffer.position((index % densityChunkRows) * vectorLength);
+      buffer.get(vector);
+      return(vector);
+   }
+
+
+   // Get response of metamorph.
+   public int getResponse(int index)
+   {
+      return(responses[index / columnChunkRows].get(index % columnChunkRows));
+   }
+
+
+   // Get goal value of metamorph.
+   public float getGoalValue(int index)
+   {
+      return(goalValues[index / columnChunkRows].get(index % columnChunkRows));
+   }
+
+
+   // Compare morphognostic, with its signature, null if not valid, to metamorph.
+   public float compare(Morphognostic morphognostic, long[] signature, int index, float[] vector)
+   {
+      if ((signature != null) && (signatures != null))
+      {
+         LongBuffer buffer = signatures[index / signatureChunkRows];
+         int        p      = (index % signatureChunkRows) * (signatureLength + 1);
+         if (buffer.get(p) != 0L)
+         {
+            int d = 0;
+            for (int i = 0; i < signatureLength; i++)
+            {
+               d += Long.bitCount(signature[i] ^ buffer.get(p + i + 1));
+            }
+            return((float)d);
+         }
+      }
+      return(morphognostic.compare(getDensities(index, vector)));
+   }
+
+
+   // Search for the metamorphs that a linear scan finds at or below its
+   // running minimum distance from the morphognostic, in index order,
+   // as MetamorphIndex.search does.
+   public void search(Morphognostic morphognostic, MetamorphIndex.SearchResult result)
+   {
+      if (morphognostic.getDensityVector().length != vectorLength)
+      {
+         throw new IllegalArgumentException("Morphognostic density vector length " +
+                                            morphognostic.getDensityVector().length +
+                                            " differs from metamorph DB length " + vectorLength);
+      }
+      long[] signature = morphognostic.getDensitySignature();
+      LinearMetamorphIndex.search(numMetamorphs,
+                                  (start, end, chunk) -> search(morphognostic, signature, start, end, chunk), result);
+   }
+
+
+   // Search range of metamorphs.
+   private void search(Morphognostic morphognostic, long[] signature, int start, int end,
+                       MetamorphIndex.SearchResult result)
+   {
+      float[] vector = new float[vectorLength];
+      float   best   = 0.0f;
+
+      result.clear();
+      for (int index = start; index < end; index++)
+      {
+         float d = compare(morphognostic, signature, index, vector);
+         if ((index == start) || (d <= best))
+         {
+            best = d;
+            result.add(index, d);
+         }
+      }
+   }
+}
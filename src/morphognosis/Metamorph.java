@@ -5,46 +5,129 @@ package morphognosis;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
-import java.util.ArrayList;
 
 // Metamorph.
 public class Metamorph
 {
-   // Morphognostic.
-   public Morphognostic morphognostic;
+   // Morphognostic snapshot, null if stored.
+   public MorphognosticSnapshot snapshot;
+
+   // Off-heap store and row of stored metamorph densities.
+   public MetamorphStore store;
+   public int            storeRow;
 
    // Response.
    public int    response;
    public String responseName;
 
    // Cause and effect metamorphs.
-   public ArrayList<Integer> causeIndexes;
-   public ArrayList<Integer> effectIndexes;
+   public IndexList causeIndexes;
+   public IndexList effectIndexes;
 
    // Goal value.
    public float goalValue;
 
+   // Match statistics: count and last match time, for eviction.
+   // These are not saved.
+   public int  matchCount;
+   public long matchTime;
+
    // Constructors.
    public Metamorph(Morphognostic morphognostic, int response, float goalValue)
    {
-      this.morphognostic = morphognostic;
-      this.response      = response;
-      responseName       = "";
-      causeIndexes       = new ArrayList<Integer>();
-      effectIndexes      = new ArrayList<Integer>();
-      this.goalValue     = goalValue;
+      this(new MorphognosticSnapshot(morphognostic), response, goalValue, "");
    }
 
 
    public Metamorph(Morphognostic morphognostic, int response,
                     float goalValue, String responseName)
    {
-      this.morphognostic = morphognostic;
-      this.response      = response;
-      this.responseName  = responseName;
-      causeIndexes       = new ArrayList<Integer>();
-      effectIndexes      = new ArrayList<Integer>();
-      this.goalValue     = goalValue;
+      this(new MorphognosticSnapshot(morphognostic), response, goalValue, responseName);
+   }
+
+
+   public Metamorph(MorphognosticSnapshot snapshot, int response,
+                    float goalValue, String responseName)
+   {
+      this.snapshot     = snapshot;
+      this.response     = response;
+      this.responseName = responseName;
+      causeIndexes      = new IndexList();
+      effectIndexes     = new IndexList();
+      this.goalValue    = goalValue;
+   }
+
+
+   // Move snapshot densities to off-heap store, dropping the snapshot.
+   public void store(MetamorphStore store)
+   {
+      storeRow   = store.add(snapshot);
+      this.store = store;
+      snapshot   = null;
+   }
+
+
+   // Release store row.
+   public void release()
+   {
+      if (store != null)
+      {
+         store.remove(storeRow);
+         store = null;
+      }
+   }
+
+
+   // Get morphognostic, reconstructed without event history.
+   public Morphognostic getMorphognostic()
+   {
+      if (snapshot != null)
+      {
+         return(snapshot.getMorphognostic());
+      }
+      return(store.getMorphognostic(storeRow));
+   }
+
+
+   // Get morphognostic density vector, which must not be modified.
+   public float[] getDensityVector()
+   {
+      if (snapshot != null)
+      {
+         return(snapshot.densities);
+      }
+      return(store.getDensities(storeRow, null));
+   }
+
+
+   // Compare morphognostic to metamorph morphognostic.
+   public float compare(Morphognostic morphognostic)
+   {
+      if (snapshot != null)
+      {
+         return(snapshot.compare(morphognostic));
+      }
+      float[] densities = morphognostic.getDensityVector();
+      return(store.compare(morphognostic.getDensitySignature(), densities, storeRow));
+   }
+
+
+   // Compare morphognostics of metamorphs.
+   public float compare(Metamorph m)
+   {
+      if (snapshot != null)
+      {
+         if (m.snapshot != null)
+         {
+            return(snapshot.compare(m.snapshot));
+         }
+         return(m.store.compare(snapshot.signature, snapshot.densities, m.storeRow));
+      }
+      if (m.snapshot != null)
+      {
+         return(store.compare(m.snapshot.signature, m.snapshot.densities, storeRow));
+      }
+      return(store.compare(storeRow, m.storeRow));
    }
 
 
@@ -55,7 +138,7 @@ public class Metamorph
       {
          return(false);
       }
-      if (morphognostic.compare(m.morphognostic) != 0.0f)
+      if (compare(m) != 0.0f)
       {
          return(false);
       }
@@ -63,49 +146,26 @@ public class Metamorph
    }
 
 
-   // Save.
+   // Save, without cause and effect links, which are saved in a MetamorphGraph.
    public void save(DataOutputStream output) throws IOException
    {
-      morphognostic.save(output);
+      getMorphognostic().save(output);
       Utility.saveInt(output, response);
       Utility.saveFloat(output, goalValue);
       Utility.saveString(output, responseName);
-      int n = causeIndexes.size();
-      Utility.saveInt(output, n);
-      for (int i : causeIndexes)
-      {
-         Utility.saveInt(output, i);
-      }
-      n = effectIndexes.size();
-      Utility.saveInt(output, n);
-      for (int i : effectIndexes)
-      {
-         Utility.saveInt(output, i);
-      }
       output.flush();
    }
 
 
-   // Load.
+   // Load, without links.
    public static Metamorph load(DataInputStream input) throws IOException
    {
       Morphognostic morphognostic = Morphognostic.load(input);
       int           response      = Utility.loadInt(input);
       float         goalValue     = Utility.loadFloat(input);
       String        responseName  = Utility.loadString(input);
-      Metamorph     metamorph     = new Metamorph(morphognostic, response, goalValue, responseName);
-      int           n             = Utility.loadInt(input);
 
-      for (int i = 0; i < n; i++)
-      {
-         metamorph.causeIndexes.add(Utility.loadInt(input));
-      }
-      n = Utility.loadInt(input);
-      for (int i = 0; i < n; i++)
-      {
-         metamorph.effectIndexes.add(Utility.loadInt(input));
-      }
-      return(metamorph);
+      return(new Metamorph(morphognostic, response, goalValue, responseName));
    }
 
 
@@ -113,19 +173,19 @@ public class Metamorph
    public void print()
    {
       System.out.println("Morphognostic:");
-      morphognostic.print();
+      getMorphognostic().print();
       System.out.println("Response=" + response);
       System.out.println("ResponseName=" + responseName);
       System.out.print("Cause indexes:");
-      for (Integer i : causeIndexes)
+      for (int i = 0; i < causeIndexes.size(); i++)
       {
-         System.out.print(" " + i);
+         System.out.print(" " + causeIndexes.get(i));
       }
       System.out.println();
       System.out.print("Effect indexes:");
-      for (Integer i : effectIndexes)
+      for (int i = 0; i < effectIndexes.size(); i++)
       {
-         System.out.print(" " + i);
+         System.out.print(" " + effectIndexes.get(i));
       }
       System.out.println();
       System.out.println("Goal value=" + goalValue);
@@ -0,0 +1,187 @@
+// For conditions of distribution and use, see copyright notice in Morphognosis.java
+
+package morphognosis;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+// Frozen metamorph cause and effect link graph in compressed sparse row form:
+// the links of metamorph i are at [offsets[i], offsets[i + 1]) in the index array.
+public class MetamorphGraph
+{
+   public int   numMetamorphs;
+   public int[] causeOffsets;
+   public int[] causeIndexes;
+   public int[] effectOffsets;
+   public int[] effectIndexes;
+
+   // Constructor.
+   public MetamorphGraph(int numMetamorphs, int[] causeOffsets, int[] causeIndexes,
+                         int[] effectOffsets, int[] effectIndexes)
+   {
+      this.numMetamorphs = numMetamorphs;
+      this.causeOffsets  = causeOffsets;
+      this.causeIndexes  = causeIndexes;
+      this.effectOffsets = effectOffsets;
+      this.effectIndexes = effectIndexes;
+   }
+
+
+   // Freeze links of metamorphs.
+   public static MetamorphGraph freeze(List<Metamorph> metamorphs)
+   {
+      int   n             = metamorphs.size();
+      int[] causeOffsets  = new int[n + 1];
+      int[] effectOffsets = new int[n + 1];
+
+      for (int i = 0; i < n; i++)
+      {
+         Metamorph m = metamorphs.get(i);
+         causeOffsets[i + 1]  = causeOffsets[i] + m.causeIndexes.size();
+         effectOffsets[i + 1] = effectOffsets[i] + m.effectIndexes.size();
+      }
+      int[] causeIndexes  = new int[causeOffsets[n]];
+      int[] effectIndexes = new int[effectOffsets[n]];
+      for (int i = 0; i < n; i++)
+      {
+         Metamorph m = metamorphs.get(i);
+         System.arraycopy(m.causeIndexes.indexes, 0, causeIndexes, causeOffsets[i], m.causeIndexes.size());
+         System.arraycopy(m.effectIndexes.indexes, 0, effectIndexes, effectOffsets[i], m.effectIndexes.size());
+      }
+      return(new MetamorphGraph(n, causeOffsets, causeIndexes, effectOffsets, effectIndexes));
+   }
+
+
+   // Thaw links into metamorphs.
+   public void thaw(List<Metamorph> metamorphs)
+   {
+      for (int i = 0; i < numMetamorphs; i++)
+      {
+         Metamorph m = metamorphs.get(i);
+         m.causeIndexes  = new IndexList(causeIndexes, causeOffsets[i], causeOffsets[i + 1]);
+         m.effectIndexes = new IndexList(effectIndexes, effectOffsets[i], effectOffsets[i + 1]);
+      }
+   }
+
+
+   // Save.
+   public void save(DataOutputStream output) throws IOException
+   {
+      Utility.saveInt(output, numMetamorphs);
+      saveInts(output, causeOffsets, numMetamorphs + 1);
+      saveInts(output, causeIndexes, causeIndexes.length);
+      saveInts(output, effectOffsets, numMetamorphs + 1);
+      saveInts(output, effectIndexes, effectIndexes.length);
+      output.flush();
+   }
+
+
+   private static void saveInts(DataOutputStream output, int[] values, int n) throws IOException
+   {
+      Utility.saveInt(output, n);
+      for (int i = 0; i < n; i++)
+      {
+         Utility.saveInt(output, values[i]);
+      }
+   }
+
+
+   // Load.
+   public static MetamorphGraph load(DataInputStream input) throws IOException
+   {
+      int   n             = Utility.loadInt(input);
+      int[] causeOffsets  = loadInts(input);
+      int[] causeIndexes  = loadInts(input);
+      int[] effectOffsets = loadInts(input);
+      int[] effectIndexes = loadInts(input);
+
+      MetamorphGraph graph = new MetamorphGraph(n, causeOffsets, causeIndexes, effectOffsets, effectIndexes);
+      graph.check();
+      return(graph);
+   }
+
+
+   // Load links saved after each metamorph, as in version 1 world files:
+   // the number of cause indexes and the indexes, then the effect indexes.
+   // They are appended to the index lists, and their ends stored at the
+   // offsets of the next metamorph.
+   public static void loadLinks(DataInputStream input, int metamorph,
+                                int[] causeOffsets, IndexList causeIndexes,
+                                int[] effectOffsets, IndexList effectIndexes) throws IOException
+   {
+      loadIndexes(input, causeIndexes);
+      causeOffsets[metamorph + 1] = causeIndexes.size();
+      loadIndexes(input, effectIndexes);
+      effectOffsets[metamorph + 1] = effectIndexes.size();
+   }
+
+
+   private static void loadIndexes(DataInputStream input, IndexList indexes) throws IOException
+   {
+      int n = Utility.loadInt(input);
+
+      if (n < 0)
+      {
+         throw new IOException("Invalid metamorph graph");
+      }
+      for (int i = 0; i < n; i++)
+      {
+         indexes.add(Utility.loadInt(input));
+      }
+   }
+
+
+   // Check that offsets ascend and indexes are of metamorphs.
+   public void check() throws IOException
+   {
+      if ((causeOffsets.length != numMetamorphs + 1) || (effectOffsets.length != numMetamorphs + 1) ||
+          !isValid(causeOffsets, causeIndexes, numMetamorphs) || !isValid(effectOffsets, effectIndexes, numMetamorphs))
+      {
+         throw new IOException("Invalid metamorph graph");
+      }
+   }
+
+
+   // Offsets ascending to the number of indexes, and indexes of metamorphs?
+   private static boolean isValid(int[] offsets, int[] indexes, int n)
+   {
+      if ((offsets[0] != 0) || (offsets[n] != indexes.length))
+      {
+         return(false);
+      }
+      for (int i = 0; i < n; i++)
+      {
+         if (offsets[i] > offsets[i + 1])
+         {
+            return(false);
+         }
+      }
+      for (int index : indexes)
+      {
+         if ((index < 0) || (index >= n))
+         {
+            return(false);
+         }
+      }
+      return(true);
+   }
+
+
+   private static int[] loadInts(DataInputStream input) throws IOException
+   {
+      int n = Utility.loadInt(input);
+
+      if (n < 0)
+      {
+         throw new IOException("Invalid metamorph graph");
+      }
+      int[] values = new int[n];
+      for (int i = 0; i < n; i++)
+      {
+         values[i] = Utility.loadInt(input);
+      }
+      return(values);
+   }
+}
@@ -0,0 +1,267 @@
+// For conditions of distribution and use, see copyright notice in Morphognosis.java
+
+package morphognosis;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Metamorph nearest neighbor index over the morphognostic compare distance.
+// Indexed metamorphs are numbered in insertion order, which must follow the
+// order of the metamorph list being searched.
+public abstract class MetamorphIndex
+{
+   // Index types.
+   public static final int LINEAR      = 0;
+   public static final int VP_TREE     = 1;
+   public static final int LSH         = 2;
+   public static final int PARTITIONED = 3;
+
+   // Indexed metamorphs.
+   public ArrayList<Metamorph> metamorphs;
+
+   // Constructor.
+   public MetamorphIndex()
+   {
+      metamorphs = new ArrayList<Metamorph>();
+   }
+
+
+   // Create index.
+   public static MetamorphIndex create(int type)
+   {
+      switch (type)
+      {
+      case LINEAR:
+         return(new LinearMetamorphIndex());
+
+      case VP_TREE:
+         return(new VPTreeMetamorphIndex());
+
+      case LSH:
+         return(new LSHMetamorphIndex());
+
+      case PARTITIONED:
+         return(new PartitionedMetamorphIndex());
+      }
+      return(null);
+   }
+
+
+   // Get index type.
+   public abstract int getType();
+
+
+   // Type name.
+   public static String toName(int type)
+   {
+      switch (type)
+      {
+      case LINEAR:
+         return("linear");
+
+      case VP_TREE:
+         return("vptree");
+
+      case LSH:
+         return("lsh");
+
+      case PARTITIONED:
+         return("partitioned");
+      }
+      return("unknown");
+   }
+
+
+   // Type from name, -1 if unknown.
+   public static int fromName(String name)
+   {
+      if (name.equals("linear"))
+      {
+         return(LINEAR);
+      }
+      if (name.equals("vptree"))
+      {
+         return(VP_TREE);
+      }
+      if (name.equals("lsh"))
+      {
+         return(LSH);
+      }
+      if (name.equals("partitioned"))
+      {
+         return(PARTITIONED);
+      }
+      return(-1);
+   }
+
+
+   // Number of indexed metamorphs.
+   public int size()
+   {
+      return(metamorphs.size());
+   }
+
+
+   // Insert metamorph.
+   public void insert(Metamorph metamorph)
+   {
+      metamorphs.add(metamorph);
+      add(metamorphs.size() - 1);
+   }
+
+
+   // Add indexed metamorph to search structure.
+   protected abstract void add(int index);
+
+
+   // Clear.
+   public void clear()
+   {
+      metamorphs.clear();
+      reset();
+   }
+
+
+   // Reset search structure.
+   protected abstract void reset();
+
+
+   // Synchronize with metamorph list: appended metamorphs are inserted,
+   // otherwise the index is rebuilt if the list no longer starts with the
+   // indexed metamorphs.
+   public void sync(List<Metamorph> list)
+   {
+      int n = metamorphs.size();
+
+      if ((list.size() < n) || ((n > 0) && (list.get(n - 1) != metamorphs.get(n - 1))))
+      {
+         clear();
+      }
+      for (int i = metamorphs.size(), j = list.size(); i < j; i++)
+      {
+         insert(list.get(i));
+      }
+   }
+
+
+   // Find metamorphs with index less than limit at the minimum distance from
+   // the morphognostic, in any order.
+   public abstract void nearest(Morphognostic morphognostic, int limit, SearchResult result);
+
+
+   // Search for the metamorphs that a linear scan in index order would find
+   // at or below its running minimum distance, in index order. Replaying these
+   // through the scan logic reproduces the scan, random tie-breaking included,
+   // since all other metamorphs are farther than the running minimum.
+   // Each metamorph at the overall minimum distance is included, so the first
+   // such metamorph starts the records at that distance, and the records before
+   // it are found the same way among the preceding metamorphs.
+   // Distances are assumed to be finite.
+   public void search(Morphognostic morphognostic, SearchResult result)
+   {
+      SearchResult level = new SearchResult();
+
+      result.clear();
+      for (int limit = metamorphs.size(); limit > 0; )
+      {
+         nearest(morphognostic, limit, level);
+         if (level.size == 0)
+         {
+            break;
+         }
+         for (int i = 0; i < level.size; i++)
+         {
+            result.add(level.indexes[i], level.distances[i]);
+            if (level.indexes[i] < limit)
+            {
+               limit = level.indexes[i];
+            }
+         }
+      }
+      result.sort();
+   }
+
+
+   // Distance between query morphognostic and indexed metamorph.
+   protected float distance(Morphognostic morphognostic, int index)
+   {
+      return(metamorphs.get(index).compare(morphognostic));
+   }
+
+
+   // Distance between indexed metamorphs.
+   protected float distance(int index, int index2)
+   {
+      return(metamorphs.get(index).compare(metamorphs.get(index2)));
+   }
+
+
+   // Search result: metamorph indexes and distances.
+   public static class SearchResult
+   {
+      public int     size;
+      public int[]   indexes;
+      public float[] distances;
+
+      public SearchResult()
+      {
+         size      = 0;
+         indexes   = new int[16];
+         distances = new float[16];
+      }
+
+
+      // Clear.
+      public void clear()
+      {
+         size = 0;
+      }
+
+
+      // Copy.
+      public void copy(SearchResult result)
+      {
+         if (indexes.length < result.size)
+         {
+            indexes   = new int[result.size];
+            distances = new float[result.size];
+         }
+         System.arraycopy(result.indexes, 0, indexes, 0, result.size);
+         System.arraycopy(result.distances, 0, distances, 0, result.size);
+         size = result.size;
+      }
+
+
+      // Add.
+      public void add(int index, float distance)
+      {
+         if (size == indexes.length)
+         {
+            indexes   = Arrays.copyOf(indexes, size * 2);
+            distances = Arrays.copyOf(distances, size * 2);
+         }
+         indexes[size]   = index;
+         distances[size] = distance;
+         size++;
+      }
+
+
+      // Sort by index.
+      public void sort()
+      {
+         long[] entries = new long[size];
+
+         for (int i = 0; i < size; i++)
+         {
+            entries[i] = ((long)indexes[i] << 32) | (Float.floatToRawIntBits(distances[i]) & 0xffffffffL);
+         }
+         Arrays.sort(entries);
+         for (int i = 0; i < size; i++)
+         {
+            indexes[i]   = (int)(entries[i] >> 32);
+            distances[i] = Float.intBitsToFloat((int)entries[i]);
+         }
+      }
+   }
+}
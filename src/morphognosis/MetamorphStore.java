@@ -0,0 +1,242 @@
+// For conditions of distribution and use, see copyright notice in Morphognosis.java
+
+package morphognosis;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+// Off-heap metamorph density store.
+// Snapshot density vectors are kept in rows of direct byte buffer blocks outside
+// the garbage collected heap. A stored metamorph is a handle to its row, and its
+// morphognostic is reconstructed from the row and the snapshot template morphognostic
+// on demand. Rows of removed metamorphs are reused.
+// A row begins with a flag word set when the density signature is valid, and
+// the signature words, followed by the densities, so that rows having valid
+// signatures are compared by bit count, as Morphognostic.compare does.
+public class MetamorphStore
+{
+   // Target bytes per block.
+   public static int BLOCK_BYTES = 1 << 20;
+
+   // Template morphognostic: parameters of stored morphognostics.
+   public Morphognostic template;
+
+   // Density vector length and offsets by neighborhood.
+   public int   vectorLength;
+   public int[] vectorOffsets;
+
+   // Signature words per row, and row bytes with the offset of the densities.
+   public int signatureLength;
+   public int rowBytes;
+   public int densitiesOffset;
+
+   // Blocks of rows.
+   public ByteBuffer[] blocks;
+   public int          numBlocks;
+   public int          blockRows;
+
+   // Rows in use and free rows.
+   public int   size;
+   public int[] freeRows;
+   public int   numFreeRows;
+
+   // Constructor.
+   public MetamorphStore()
+   {
+      clear();
+   }
+
+
+   // Clear.
+   public void clear()
+   {
+      template    = null;
+      blocks      = new ByteBuffer[4];
+      numBlocks   = 0;
+      size        = 0;
+      freeRows    = new int[16];
+      numFreeRows = 0;
+   }
+
+
+   // Add snapshot densities, returning row.
+   public int add(MorphognosticSnapshot snapshot)
+   {
+      float[] densities = snapshot.densities;
+
+      if (template == null)
+      {
+         template        = snapshot.template;
+         vectorLength    = densities.length;
+         vectorOffsets   = snapshot.offsets;
+         signatureLength = (vectorLength + 63) / 64;
+         densitiesOffset = (signatureLength + 1) * 8;
+         rowBytes        = densitiesOffset + vectorLength * 4;
+         blockRows       = Math.max(BLOCK_BYTES / rowBytes, 1);
+      }
+      else if (densities.length != vectorLength)
+      {
+         throw new IllegalArgumentException("Morphognostic density vector length " + densities.length +
+                                            " differs from store length " + vectorLength);
+      }
+      int row;
+      if (numFreeRows > 0)
+      {
+         row = freeRows[--numFreeRows];
+      }
+      else
+      {
+         row = size;
+         if (row == numBlocks * blockRows)
+         {
+            if (numBlocks == blocks.length)
+            {
+               blocks = Arrays.copyOf(blocks, numBlocks * 2);
+            }
+            blocks[numBlocks++] = ByteBuffer.allocateDirect(blockRows * rowBytes).order(ByteOrder.nativeOrder());
+         }
+      }
+      size++;
+      ByteBuffer block     = blocks[row / blockRows];
+      int        p         = (row % blockRows) * rowBytes;
+      long[]     signature = snapshot.signature;
+      block.putLong(p, signature != null ? 1L : 0L);
+      for (int i = 0; i < signatureLength; i++)
+      {
+         block.putLong(p + (i + 1) * 8, signature != null ? signature[i] : 0L);
+      }
+      p += densitiesOffset;
+      for (int i = 0; i < vectorLength; i++, p += 4)
+      {
+         block.putFloat(p, densities[i]);
+      }
+      return(row);
+   }
+
+
+   // Remove row.
+   public void remove(int row)
+   {
+      if (numFreeRows == freeRows.length)
+      {
+         freeRows = Arrays.copyOf(freeRows, numFreeRows * 2);
+      }
+      freeRows[numFreeRows++] = row;
+      size--;
+   }
+
+
+   // Get density vector of row.
+   public float[] getDensities(int row, float[] densities)
+   {
+      if (densities == null)
+      {
+         densities = new float[vectorLength];
+      }
+      ByteBuffer block = blocks[row / blockRows];
+      int        p     = (row % blockRows) * rowBytes + densitiesOffset;
+      for (int i = 0; i < vectorLength; i++, p += 4)
+      {
+         densities[i] = block.getFloat(p);
+      }
+      return(densities);
+   }
+
+
+   // Get density of row.
+   public float getDensity(int row, int index)
+   {
+      return(blocks[row / blockRows].getFloat((row % blockRows) * rowBytes + densitiesOffset + index * 4));
+   }
+
+
+   // Row has a valid density signature?
+   public boolean hasSignature(int row)
+   {
+      return(blocks[row / blockRows].getLong((row % blockRows) * rowBytes) != 0L);
+   }
+
+
+   // Reconstruct morphognostic of row.
+   public Morphognostic getMorphognostic(int row)
+   {
+      Morphognostic morphognostic = template.clone();
+
+      morphognostic.setDensityVector(getDensities(row, null));
+      return(morphognostic);
+   }
+
+
+   // Compare density vector to row, as Morphognostic.compare does.
+   public float compare(float[] densities, int row)
+   {
+      return(compare(null, densities, row));
+   }
+
+
+   // Compare density vector and its signature, null if not valid, to row.
+   // Safe for concurrent readers.
+   public float compare(long[] signature, float[] densities, int row)
+   {
+      ByteBuffer block = blocks[row / blockRows];
+      int        p     = (row % blockRows) * rowBytes;
+      float      d     = 0.0f;
+
+      if ((signature != null) && (block.getLong(p) != 0L))
+      {
+         int c = 0;
+         for (int i = 0; i < signatureLength; i++)
+         {
+            c += Long.bitCount(signature[i] ^ block.getLong(p + (i + 1) * 8));
+         }
+         return((float)c);
+      }
+      p += densitiesOffset;
+
+      for (int i = 0, n = vectorOffsets.length - 1; i < n; i++)
+      {
+         float c = 0.0f;
+         for (int j = vectorOffsets[i], j2 = vectorOffsets[i + 1]; j < j2; j++)
+         {
+            c += Math.abs(densities[j] - block.getFloat(p + (j * 4)));
+         }
+         d += c;
+      }
+      return(d);
+   }
+
+
+   // Compare rows.
+   public float compare(int row, int row2)
+   {
+      ByteBuffer block  = blocks[row / blockRows];
+      int        p      = (row % blockRows) * rowBytes;
+      ByteBuffer block2 = blocks[row2 / blockRows];
+      int        p2     = (row2 % blockRows) * rowBytes;
+      float      d      = 0.0f;
+
+      if ((block.getLong(p) != 0L) && (block2.getLong(p2) != 0L))
+      {
+         int c = 0;
+         for (int i = 1; i <= signatureLength; i++)
+         {
+            c += Long.bitCount(block.getLong(p + i * 8) ^ block2.getLong(p2 + i * 8));
+         }
+         return((float)c);
+      }
+      p  += densitiesOffset;
+      p2 += densitiesOffset;
+
+      for (int i = 0, n = vectorOffsets.length - 1; i < n; i++)
+      {
+         float c = 0.0f;
+         for (int j = vectorOffsets[i], j2 = vectorOffsets[i + 1]; j < j2; j++)
+         {
+            c += Math.abs(block.getFloat(p + (j * 4)) - block2.getFloat(p2 + (j * 4)));
+         }
+         d += c;
+      }
+      return(d);
+   }
+}
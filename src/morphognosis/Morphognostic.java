@@ -6,7 +6,7 @@ import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.EOFException;
 import java.io.IOException;
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Vector;
 
 import morphognosis.honey_bees.Parameters;
@@ -24,37 +24,93 @@ public class Morphognostic
    public static final int[][] DEFAULT_NEIGHBORHOOD_DIMENSIONS  = { { 3, 1 } };
    public static final int[]   DEFAULT_NEIGHBORHOOD_DURATIONS   = { 1 };
    public static final boolean DEFAULT_BINARY_VALUE_AGGREGATION = false;
+   public static final boolean DEFAULT_INCREMENTAL_AGGREGATION  = true;
    public int NUM_NEIGHBORHOODS = DEFAULT_NUM_NEIGHBORHOODS;
    // NEIGHBORHOOD_DIMENSIONS element: { <neighborhood dimension>, <sector dimension> }
    public int[][] NEIGHBORHOOD_DIMENSIONS  = DEFAULT_NEIGHBORHOOD_DIMENSIONS;
    public int[]   NEIGHBORHOOD_DURATIONS   = DEFAULT_NEIGHBORHOOD_DURATIONS;
    public boolean BINARY_VALUE_AGGREGATION = DEFAULT_BINARY_VALUE_AGGREGATION;
 
-   // Events.
-   public class Event
+   // Incremental aggregation: while the neighborhood center is unchanged, add arriving
+   // events to and subtract expired events from per-sector value counts instead of
+   // re-aggregating the whole event history.
+   public boolean INCREMENTAL_AGGREGATION = DEFAULT_INCREMENTAL_AGGREGATION;
+
+   // Events: ring buffer of event values, locations and times.
+   // Values are packed eventDimensions per slot. The slot of the event expired by the
+   // latest update is retained until the next update for incremental aggregation.
+   // Packed events: when every event dimension has a single 0/1 value, an event is
+   // stored as a bitmask of its set dimensions instead.
+   public int     eventBufferCapacity;
+   public int     eventBufferStart;
+   public int     numEvents;
+   public int     expiredEventSlot;
+   public boolean packedEvents;
+   public int[]   eventValueBuffer;
+   public long[]  eventMaskBuffer;
+   public int[] eventXbuffer;
+   public int[] eventYbuffer;
+   public int[] eventTimeBuffer;
+
+   // Get buffer slot of event.
+   public int getEventSlot(int index)
    {
-      public int[] values;
-      public int   x;
-      public int   y;
-      public int   time;
-      public Event(int[] values, int x, int y, int time)
+      return((eventBufferStart + index) % eventBufferCapacity);
+   }
+
+
+   // Get event value at buffer slot.
+   public int getEventValue(int slot, int dimension)
+   {
+      if (packedEvents)
+      {
+         return((int)(eventMaskBuffer[slot] >>> dimension) & 1);
+      }
+      else
       {
-         int n = values.length;
+         return(eventValueBuffer[(slot * eventDimensions) + dimension]);
+      }
+   }
 
-         this.values = new int[n];
-         for (int i = 0; i < n; i++)
+
+   // Set event value at buffer slot.
+   public void setEventValue(int slot, int dimension, int value)
+   {
+      if (packedEvents)
+      {
+         if (value == 0)
          {
-            this.values[i] = values[i];
+            eventMaskBuffer[slot] &= ~(1L << dimension);
+            return;
          }
-         this.x    = x;
-         this.y    = y;
-         this.time = time;
+         else if (value == 1)
+         {
+            eventMaskBuffer[slot] |= 1L << dimension;
+            return;
+         }
+         unpackEvents();
       }
+      eventValueBuffer[(slot * eventDimensions) + dimension] = value;
    }
-   public ArrayList<Event> events;
-   public Event createEvent(int[] values, int x, int y, int time)
+
+
+   // Unpack event bitmasks to values.
+   public void unpackEvents()
    {
-      return(new Event(values, x, y, time));
+      if (packedEvents)
+      {
+         eventValueBuffer = new int[eventBufferCapacity * eventDimensions];
+         for (int slot = 0; slot < eventBufferCapacity; slot++)
+         {
+            long mask = eventMaskBuffer[slot];
+            for (int d = 0, i = slot * eventDimensions; d < eventDimensions; d++, i++)
+            {
+               eventValueBuffer[i] = (int)(mask >>> d) & 1;
+            }
+         }
+         eventMaskBuffer = null;
+         packedEvents    = false;
+      }
    }
 
 
@@ -79,6 +135,8 @@ public class Morphognostic
       {
          public int       dx, dy, dimension;
          public float[][] valueDensities;
+         public int[][]   valueCounts;
+         public long      densityMask;
 
          public Sector(int dx, int dy, int dimension)
          {
@@ -112,6 +170,22 @@ public class Morphognostic
       // Sectors.
       public Sector[][] sectors;
 
+      // Sectors in rectified order by orientation (null for non-rectifiable orientations).
+      public Sector[][] rectifiedSectors;
+
+      // Closest sector lookup by event offset from neighborhood origin.
+      public Sector[] sectorLookup;
+      public int      sectorLookupX, sectorLookupY;
+      public int      sectorLookupWidth, sectorLookupHeight;
+
+      // Aggregation state.
+      public boolean aggregationValid;
+      public int     aggregationX, aggregationY, aggregationTime;
+
+      // Packed events: mask of mapped event dimensions, and union of sector density masks.
+      public long mappedEventMask;
+      public long densityMask;
+
       // Constructors.
       public Neighborhood(int dx, int dy, int dimension,
                           int duration, int sectorDimension)
@@ -158,117 +232,354 @@ public class Morphognostic
                sectors[x][y] = new Sector(sdx, sdy, sectorDimension);
             }
          }
+         initSectorLookup();
+         initRectifiedSectors();
          eventDimensionMap = null;
+         aggregationValid  = false;
+      }
+
+
+      // Initialize rectified sector orders.
+      public void initRectifiedSectors()
+      {
+         int n = sectors.length;
+
+         rectifiedSectors = new Sector[Orientation.NUM_ORIENTATIONS][];
+         rectifiedSectors[Orientation.NORTH] = new Sector[n * n];
+         rectifiedSectors[Orientation.SOUTH] = new Sector[n * n];
+         rectifiedSectors[Orientation.EAST]  = new Sector[n * n];
+         rectifiedSectors[Orientation.WEST]  = new Sector[n * n];
+         for (int i = 0, sy1 = 0; sy1 < n; sy1++)
+         {
+            for (int sx1 = 0; sx1 < n; sx1++)
+            {
+               rectifiedSectors[Orientation.NORTH][i++] = sectors[sx1][sy1];
+            }
+         }
+         for (int i = 0, sy1 = n - 1; sy1 >= 0; sy1--)
+         {
+            for (int sx1 = n - 1; sx1 >= 0; sx1--)
+            {
+               rectifiedSectors[Orientation.SOUTH][i++] = sectors[sx1][sy1];
+            }
+         }
+         for (int i = 0, sx1 = n - 1; sx1 >= 0; sx1--)
+         {
+            for (int sy1 = 0; sy1 < n; sy1++)
+            {
+               rectifiedSectors[Orientation.EAST][i++] = sectors[sx1][sy1];
+            }
+         }
+         for (int i = 0, sx1 = 0; sx1 < n; sx1++)
+         {
+            for (int sy1 = n - 1; sy1 >= 0; sy1--)
+            {
+               rectifiedSectors[Orientation.WEST][i++] = sectors[sx1][sy1];
+            }
+         }
+      }
+
+
+      // Initialize closest sector lookup.
+      // The table spans the sector centers; offsets beyond are clamped to its border, which
+      // preserves the closest sector since Manhattan distance is separable by axis.
+      public void initSectorLookup()
+      {
+         Sector s1 = sectors[0][0];
+         Sector s2 = sectors[sectors.length - 1][sectors.length - 1];
+
+         sectorLookupX      = s1.dx + (s1.dimension / 2);
+         sectorLookupY      = s1.dy + (s1.dimension / 2);
+         sectorLookupWidth  = s2.dx + (s2.dimension / 2) - sectorLookupX + 1;
+         sectorLookupHeight = s2.dy + (s2.dimension / 2) - sectorLookupY + 1;
+         sectorLookup       = new Sector[sectorLookupWidth * sectorLookupHeight];
+         for (int x = 0; x < sectorLookupWidth; x++)
+         {
+            for (int y = 0; y < sectorLookupHeight; y++)
+            {
+               sectorLookup[(x * sectorLookupHeight) + y] = searchSector(x + sectorLookupX, y + sectorLookupY);
+            }
+         }
+      }
+
+
+      // Search for closest sector to event offset from neighborhood origin.
+      public Sector searchSector(int ex, int ey)
+      {
+         Sector s    = sectors[sectors.length / 2][sectors.length / 2];
+         int    dist = Math.abs(s.dx + (s.dimension / 2) - ex) + Math.abs(s.dy + (s.dimension / 2) - ey);
+
+         for (int x = 0, x2 = sectors.length; x < x2; x++)
+         {
+            for (int y = 0, y2 = sectors.length; y < y2; y++)
+            {
+               Sector s2    = sectors[x][y];
+               int    dist2 = Math.abs(s2.dx + (s2.dimension / 2) - ex) + Math.abs(s2.dy + (s2.dimension / 2) - ey);
+               if (dist2 < dist)
+               {
+                  dist = dist2;
+                  s    = s2;
+               }
+            }
+         }
+         return(s);
+      }
+
+
+      // Get closest sector to event offset from neighborhood origin.
+      public Sector getSector(int ex, int ey)
+      {
+         int x = ex - sectorLookupX;
+
+         if (x < 0)
+         {
+            x = 0;
+         }
+         else if (x >= sectorLookupWidth)
+         {
+            x = sectorLookupWidth - 1;
+         }
+         int y = ey - sectorLookupY;
+         if (y < 0)
+         {
+            y = 0;
+         }
+         else if (y >= sectorLookupHeight)
+         {
+            y = sectorLookupHeight - 1;
+         }
+         return(sectorLookup[(x * sectorLookupHeight) + y]);
       }
 
 
       // Update neighborhood.
       public void update(int cx, int cy, boolean wrapWorld)
       {
-         // Clear value densities.
-         for (int sx1 = 0, sx2 = sectors.length; sx1 < sx2; sx1++)
+         // Accumulate value counts per sector.
+         if (packedEvents)
          {
-            for (int sy1 = 0, sy2 = sectors.length; sy1 < sy2; sy1++)
+            mappedEventMask = 0;
+            for (int d = 0; d < eventDimensions; d++)
             {
-               Sector s = sectors[sx1][sy1];
-               for (int i = 0; i < eventDimensions; i++)
+               if ((eventDimensionMap == null) || eventDimensionMap[d])
                {
-                  for (int j = 0; j < eventValueDimensions[i]; j++)
-                  {
-                     s.valueDensities[i][j] = 0.0f;
-                  }
+                  mappedEventMask |= 1L << d;
                }
             }
          }
+         if (!INCREMENTAL_AGGREGATION || !aggregationValid ||
+             (cx != aggregationX) || (cy != aggregationY) ||
+             (eventTime != aggregationTime + 1) || !aggregateIncrementally(cx, cy))
+         {
+            aggregate(cx, cy);
+         }
+         aggregationValid = true;
+         aggregationX     = cx;
+         aggregationY     = cy;
+         aggregationTime  = eventTime;
 
-         // Accumulate values per sector.
-         for (Event event : events)
+         // Set value densities from counts, scaled by duration.
+         for (int sx1 = 0, sx2 = sectors.length; sx1 < sx2; sx1++)
          {
-            // Filter events within duration of neighborhood.
-            int et = eventTime - event.time;
-            if (et < duration)
+            for (int sy1 = 0, sy2 = sectors.length; sy1 < sy2; sy1++)
             {
-               // Determine closest sector in which event occurred.
-               int    ex   = event.x;
-               int    ey   = event.y;
-               Sector s    = sectors[sectors.length / 2][sectors.length / 2];
-               int    sx   = cx + dx + s.dx + (s.dimension / 2);
-               int    sy   = cy + dy + s.dy + (s.dimension / 2);
-               int    dist = Math.abs(sx - ex) + Math.abs(sy - ey);
-               for (int x = 0, x2 = sectors.length; x < x2; x++)
+               Sector s = sectors[sx1][sy1];
+               for (int d = 0; d < eventDimensions; d++)
                {
-                  for (int y = 0, y2 = sectors.length; y < y2; y++)
+                  for (int i = 0; i < eventValueDimensions[d]; i++)
                   {
-                     Sector s2    = sectors[x][y];
-                     int    sx2   = cx + dx + s2.dx + (s2.dimension / 2);
-                     int    sy2   = cy + dy + s2.dy + (s2.dimension / 2);
-                     int    dist2 = Math.abs(sx2 - ex) + Math.abs(sy2 - ey);
-                     if (dist2 < dist)
+                     float density = (float)s.valueCounts[d][i];
+                     if (BINARY_VALUE_AGGREGATION)
                      {
-                        dist = dist2;
-                        s    = s2;
-                        sx   = sx2;
-                        sy   = sy2;
+                        if (density > 1.0f)
+                        {
+                           density = 1.0f;
+                        }
+                     }
+                     else
+                     {
+                        density /= (float)duration;
                      }
+                     s.valueDensities[d][i] = density;
                   }
                }
+            }
+         }
+         if (packedEvents)
+         {
+            updateDensityMasks();
+         }
+      }
+
 
-               // Accumulate values.
+      // Update density masks of single valued event dimensions having positive density.
+      public void updateDensityMasks()
+      {
+         densityMask = 0;
+         for (int sx1 = 0, sx2 = sectors.length; sx1 < sx2; sx1++)
+         {
+            for (int sy1 = 0, sy2 = sectors.length; sy1 < sy2; sy1++)
+            {
+               Sector s = sectors[sx1][sy1];
+               s.densityMask = 0;
                for (int d = 0; d < eventDimensions; d++)
                {
-                  // Event dimension mapped to neighborhood?
-                  if ((eventDimensionMap == null) || eventDimensionMap[d])
+                  if (s.valueDensities[d][0] > 0.0f)
                   {
-                     if (event.values[d] != -1)
-                     {
-                        int v = event.values[d];
-                        if (s.valueDensities[d].length == 1)
-                        {
-                           s.valueDensities[d][0] += (float)v;
-                        }
-                        else
-                        {
-                           s.valueDensities[d][v] += 1.0f;
-                        }
-                     }
+                     s.densityMask |= 1L << d;
                   }
                }
+               densityMask |= s.densityMask;
             }
          }
+      }
 
-         // Scale value densities by duration.
+
+      // Aggregate value counts of all events within duration of neighborhood.
+      public void aggregate(int cx, int cy)
+      {
+         // Clear value counts.
          for (int sx1 = 0, sx2 = sectors.length; sx1 < sx2; sx1++)
          {
             for (int sy1 = 0, sy2 = sectors.length; sy1 < sy2; sy1++)
             {
                Sector s = sectors[sx1][sy1];
-               for (int d = 0; d < eventDimensions; d++)
+               if (s.valueCounts == null)
                {
-                  for (int i = 0; i < eventValueDimensions[d]; i++)
+                  s.valueCounts = new int[eventDimensions][];
+                  for (int d = 0; d < eventDimensions; d++)
                   {
-                     if (BINARY_VALUE_AGGREGATION)
-                     {
-                        if (s.valueDensities[d][i] > 1.0f)
-                        {
-                           s.valueDensities[d][i] = 1.0f;
-                        }
-                     }
-                     else
+                     s.valueCounts[d] = new int[eventValueDimensions[d]];
+                  }
+               }
+               else
+               {
+                  for (int d = 0; d < eventDimensions; d++)
+                  {
+                     for (int i = 0; i < eventValueDimensions[d]; i++)
                      {
-                        s.valueDensities[d][i] /= (float)duration;
+                        s.valueCounts[d][i] = 0;
                      }
                   }
                }
             }
          }
+
+         // Accumulate values per sector.
+         for (int i = 0; i < numEvents; i++)
+         {
+            // Filter events within duration of neighborhood.
+            int slot = getEventSlot(i);
+            int et   = eventTime - eventTimeBuffer[slot];
+            if (et < duration)
+            {
+               accumulateEvent(slot, cx, cy, 1);
+            }
+         }
+      }
+
+
+      // Add the current event and subtract the event that aged out of the neighborhood duration.
+      // Returns false if the aged event cannot be found, requiring full aggregation.
+      public boolean aggregateIncrementally(int cx, int cy)
+      {
+         if (numEvents == 0)
+         {
+            return(false);
+         }
+         int slot = getEventSlot(numEvents - 1);
+         if (eventTimeBuffer[slot] != eventTime)
+         {
+            return(false);
+         }
+         int agedTime = eventTime - duration;
+         int agedSlot = -1;
+         int i        = numEvents - 1 - duration;
+         if ((i >= 0) && (eventTimeBuffer[getEventSlot(i)] == agedTime))
+         {
+            agedSlot = getEventSlot(i);
+         }
+         else if ((expiredEventSlot != -1) && (eventTimeBuffer[expiredEventSlot] == agedTime))
+         {
+            agedSlot = expiredEventSlot;
+         }
+         else if ((i >= 0) || ((expiredEventSlot != -1) && (eventTimeBuffer[expiredEventSlot] > agedTime)) ||
+                  (eventTimeBuffer[eventBufferStart] <= agedTime))
+         {
+            return(false);
+         }
+         if (agedSlot != -1)
+         {
+            accumulateEvent(agedSlot, cx, cy, -1);
+         }
+         accumulateEvent(slot, cx, cy, 1);
+         return(true);
+      }
+
+
+      // Accumulate event values into closest sector.
+      public void accumulateEvent(int slot, int cx, int cy, int sign)
+      {
+         // Determine closest sector in which event occurred.
+         Sector s = getSector(eventXbuffer[slot] - cx - dx, eventYbuffer[slot] - cy - dy);
+
+         // Accumulate values.
+         if (packedEvents)
+         {
+            for (long bits = eventMaskBuffer[slot] & mappedEventMask; bits != 0; bits &= bits - 1)
+            {
+               s.valueCounts[Long.numberOfTrailingZeros(bits)][0] += sign;
+            }
+            return;
+         }
+         for (int d = 0; d < eventDimensions; d++)
+         {
+            // Event dimension mapped to neighborhood?
+            if ((eventDimensionMap == null) || eventDimensionMap[d])
+            {
+               int v = eventValueBuffer[(slot * eventDimensions) + d];
+               if (v != -1)
+               {
+                  if (s.valueCounts[d].length == 1)
+                  {
+                     s.valueCounts[d][0] += sign * v;
+                  }
+                  else
+                  {
+                     s.valueCounts[d][v] += sign;
+                  }
+               }
+            }
+         }
       }
 
 
       // Compare neighborhood.
+      // Sectors are compared in place in rectified order.
       public float compare(Neighborhood n)
       {
          float c = 0.0f;
 
+         Sector[] sectors1 = rectifiedSectors[orientation];
+         Sector[] sectors2 = n.rectifiedSectors[n.getOrientation()];
+         if ((sectors1 != null) && (sectors2 != null))
+         {
+            for (int i = 0, j = sectors1.length; i < j; i++)
+            {
+               float[][] densities1 = sectors1[i].valueDensities;
+               float[][] densities2 = sectors2[i].valueDensities;
+               for (int d = 0; d < eventDimensions; d++)
+               {
+                  float[] values1 = densities1[d];
+                  float[] values2 = densities2[d];
+                  for (int k = 0, k2 = values1.length; k < k2; k++)
+                  {
+                     c += Math.abs(values1[k] - values2[k]);
+                  }
+               }
+            }
+            return(c);
+         }
          float[][][] densities1 = rectifySectorValueDensities();
          float[][][] densities2 = n.rectifySectorValueDensities();
          for (int i = 0, j = sectors.length * sectors.length; i < j; i++)
@@ -285,6 +596,13 @@ public class Morphognostic
       }
 
 
+      // Get orientation of morphognostic.
+      public int getOrientation()
+      {
+         return(orientation);
+      }
+
+
       // Rectify sector densities.
       public float[][][] rectifySectorValueDensities()
       {
@@ -376,6 +694,20 @@ public class Morphognostic
    // Orientation.
    public int orientation;
 
+   // Density vector: value densities of all neighborhoods in rectified sector order,
+   // omitting event dimensions not mapped to a neighborhood. Offsets index the start of
+   // each neighborhood. The vector is cached and rebuilt when dirty or reoriented.
+   public float[] densityVector;
+   public int[]   densityVectorOffsets;
+   public boolean densityVectorDirty;
+   public int     densityVectorOrientation;
+
+   // Density signature: bitset of the density vector maintained with binary value
+   // aggregation, valid when every density is 0 or 1. The L1 distance between two
+   // such vectors is the Hamming distance between their signatures.
+   public long[]  densitySignature;
+   public boolean densitySignatureValid;
+
    // Constructors.
    public Morphognostic(int orientation,
                         int[] eventValueDimensions,
@@ -497,12 +829,96 @@ public class Morphognostic
       {
          maxEventAge = 0;
       }
-      events     = new ArrayList<Event>();
+      packedEvents = (eventDimensions <= 64);
+      for (int d = 0; d < eventDimensions; d++)
+      {
+         if (eventValueDimensions[d] != 1)
+         {
+            packedEvents = false;
+         }
+      }
+      initEventBuffer(maxEventAge + 2);
       eventTime  = 0;
       eventNames = null;
    }
 
 
+   // Initialize event buffer.
+   public void initEventBuffer(int capacity)
+   {
+      eventBufferCapacity = capacity;
+      eventBufferStart    = 0;
+      numEvents           = 0;
+      expiredEventSlot    = -1;
+      if (packedEvents)
+      {
+         eventValueBuffer = null;
+         eventMaskBuffer  = new long[capacity];
+      }
+      else
+      {
+         eventValueBuffer = new int[capacity * eventDimensions];
+         eventMaskBuffer  = null;
+      }
+      eventXbuffer        = new int[capacity];
+      eventYbuffer        = new int[capacity];
+      eventTimeBuffer     = new int[capacity];
+   }
+
+
+   // Add event to buffer, returning its slot.
+   public int addEvent(int x, int y, int time)
+   {
+      if (numEvents == eventBufferCapacity)
+      {
+         // Grow buffer.
+         int    capacity = eventBufferCapacity * 2;
+         int[]  values    = null;
+         long[] masks     = null;
+         if (packedEvents)
+         {
+            masks = new long[capacity];
+         }
+         else
+         {
+            values = new int[capacity * eventDimensions];
+         }
+         int[] xs    = new int[capacity];
+         int[] ys    = new int[capacity];
+         int[] times = new int[capacity];
+         for (int i = 0; i < numEvents; i++)
+         {
+            int slot = getEventSlot(i);
+            if (packedEvents)
+            {
+               masks[i] = eventMaskBuffer[slot];
+            }
+            else
+            {
+               System.arraycopy(eventValueBuffer, slot * eventDimensions, values, i * eventDimensions, eventDimensions);
+            }
+            xs[i]    = eventXbuffer[slot];
+            ys[i]    = eventYbuffer[slot];
+            times[i] = eventTimeBuffer[slot];
+         }
+         eventBufferCapacity = capacity;
+         eventBufferStart    = 0;
+         expiredEventSlot    = -1;
+         eventValueBuffer    = values;
+         eventMaskBuffer     = masks;
+         eventXbuffer        = xs;
+         eventYbuffer        = ys;
+         eventTimeBuffer     = times;
+      }
+      int slot = getEventSlot(numEvents);
+      numEvents++;
+      eventXbuffer[slot]    = x;
+      eventYbuffer[slot]    = y;
+      eventTimeBuffer[slot] = time;
+      return(slot);
+   }
+
+
    // Name events.
    public void nameEvents(String[] eventNames)
    {
@@ -520,10 +936,38 @@ public class Morphognostic
    public void update(int[] eventValues, int cx, int cy, boolean wrapWorld)
    {
       // Update events.
-      events.add(new Event(eventValues, cx, cy, eventTime));
-      if ((eventTime - events.get(0).time) > maxEventAge)
+      int slot = addEvent(cx, cy, eventTime);
+      if (packedEvents)
+      {
+         long mask = 0;
+         for (int d = 0; d < eventDimensions; d++)
+         {
+            if (eventValues[d] == 1)
+            {
+               mask |= 1L << d;
+            }
+            else if (eventValues[d] != 0)
+            {
+               // Not binary: unpack.
+               unpackEvents();
+               break;
+            }
+         }
+         if (packedEvents)
+         {
+            eventMaskBuffer[slot] = mask;
+         }
+      }
+      if (!packedEvents)
       {
-         events.remove(0);
+         System.arraycopy(eventValues, 0, eventValueBuffer, slot * eventDimensions, eventDimensions);
+      }
+      expiredEventSlot = -1;
+      if ((eventTime - eventTimeBuffer[eventBufferStart]) > maxEventAge)
+      {
+         expiredEventSlot = eventBufferStart;
+         eventBufferStart = (eventBufferStart + 1) % eventBufferCapacity;
+         numEvents--;
       }
 
       // Update neighborhoods.
@@ -531,6 +975,7 @@ public class Morphognostic
       {
          neighborhoods.get(i).update(cx, cy, wrapWorld);
       }
+      densityVectorDirty = true;
       eventTime++;
    }
 
@@ -538,16 +983,239 @@ public class Morphognostic
    // Compare.
    public float compare(Morphognostic m)
    {
-      float d = 0.0f;
+      float[] densities = m.getDensityVector();
+
+      getDensityVector();
+      if (densitySignatureValid && m.densitySignatureValid)
+      {
+         return(compare(m.densitySignature));
+      }
+      return(compare(densities));
+   }
+
+
+   // Compare to valid density signature of morphognostic having the same neighborhoods.
+   // The count is exact as a float since it cannot exceed the density vector length.
+   public float compare(long[] signature)
+   {
+      long[] signature2 = getDensitySignature();
+      int    d          = 0;
+
+      for (int i = 0; i < signature2.length; i++)
+      {
+         d += Long.bitCount(signature2[i] ^ signature[i]);
+      }
+      return((float)d);
+   }
+
+
+   // Compare to density vector of morphognostic having the same neighborhoods.
+   // Differences are summed by neighborhood to match Neighborhood.compare.
+   public float compare(float[] densities)
+   {
+      float[] densities2 = getDensityVector();
+      float   d          = 0.0f;
 
       for (int i = 0; i < NUM_NEIGHBORHOODS; i++)
       {
-         d += neighborhoods.get(i).compare(m.neighborhoods.get(i));
+         float c = 0.0f;
+         for (int j = densityVectorOffsets[i], j2 = densityVectorOffsets[i + 1]; j < j2; j++)
+         {
+            c += Math.abs(densities2[j] - densities[j]);
+         }
+         d += c;
       }
       return(d);
    }
 
 
+   // Get density vector.
+   // Note: rebuilds the cached vector if needed, so concurrent readers must
+   // call this beforehand.
+   public float[] getDensityVector()
+   {
+      if ((densityVector == null) || densityVectorDirty || (densityVectorOrientation != orientation))
+      {
+         if (densityVectorOffsets == null)
+         {
+            densityVectorOffsets = new int[NUM_NEIGHBORHOODS + 1];
+            int k = 0;
+            for (int i = 0; i < NUM_NEIGHBORHOODS; i++)
+            {
+               Neighborhood n = neighborhoods.get(i);
+               densityVectorOffsets[i] = k;
+               for (int d = 0; d < eventDimensions; d++)
+               {
+                  if ((n.eventDimensionMap == null) || n.eventDimensionMap[d])
+                  {
+                     k += n.sectors.length * n.sectors.length * eventValueDimensions[d];
+                  }
+               }
+            }
+            densityVectorOffsets[NUM_NEIGHBORHOODS] = k;
+            densityVector = new float[k];
+         }
+         fillDensityVector(orientation, densityVector);
+         densityVectorDirty       = false;
+         densityVectorOrientation = orientation;
+         updateDensitySignature();
+      }
+      return(densityVector);
+   }
+
+
+   // Copy density vector in the rectified sector order of orientation.
+   public float[] copyDensityVector(int orientation)
+   {
+      float[] densities = getDensityVector();
+
+      if (orientation == this.orientation)
+      {
+         return(densities.clone());
+      }
+      densities = new float[densities.length];
+      fillDensityVector(orientation, densities);
+      return(densities);
+   }
+
+
+   // Fill density vector in the rectified sector order of orientation.
+   private void fillDensityVector(int orientation, float[] densities)
+   {
+      for (int i = 0, k = 0; i < NUM_NEIGHBORHOODS; i++)
+      {
+         Neighborhood        n       = neighborhoods.get(i);
+         Neighborhood.Sector[] sectors = n.rectifiedSectors[orientation];
+         if (sectors == null)
+         {
+            sectors = n.rectifiedSectors[Orientation.NORTH];
+         }
+         for (Neighborhood.Sector s : sectors)
+         {
+            for (int d = 0; d < eventDimensions; d++)
+            {
+               if ((n.eventDimensionMap == null) || n.eventDimensionMap[d])
+               {
+                  for (int j = 0; j < eventValueDimensions[d]; j++)
+                  {
+                     densities[k++] = s.valueDensities[d][j];
+                  }
+               }
+            }
+         }
+      }
+   }
+
+
+   // Set value densities from density vector, in the rectified sector order of
+   // the current orientation. Event dimensions not mapped to a neighborhood
+   // are left unchanged.
+   public void setDensityVector(float[] densities)
+   {
+      for (int i = 0, k = 0; i < NUM_NEIGHBORHOODS; i++)
+      {
+         Neighborhood          n       = neighborhoods.get(i);
+         Neighborhood.Sector[] sectors = n.rectifiedSectors[orientation];
+         if (sectors == null)
+         {
+            sectors = n.rectifiedSectors[Orientation.NORTH];
+         }
+         for (Neighborhood.Sector s : sectors)
+         {
+            for (int d = 0; d < eventDimensions; d++)
+            {
+               if ((n.eventDimensionMap == null) || n.eventDimensionMap[d])
+               {
+                  for (int j = 0; j < eventValueDimensions[d]; j++)
+                  {
+                     s.valueDensities[d][j] = densities[k++];
+                  }
+               }
+            }
+         }
+         n.aggregationValid = false;
+         if (packedEvents)
+         {
+            n.updateDensityMasks();
+         }
+      }
+      densityVectorDirty = true;
+   }
+
+
+   // Get density signature, or null if not valid.
+   public long[] getDensitySignature()
+   {
+      getDensityVector();
+      if (densitySignatureValid)
+      {
+         return(densitySignature);
+      }
+      return(null);
+   }
+
+
+   // Update density signature from density vector.
+   private void updateDensitySignature()
+   {
+      densitySignatureValid = false;
+      if (!BINARY_VALUE_AGGREGATION)
+      {
+         return;
+      }
+      if (densitySignature == null)
+      {
+         densitySignature = new long[(densityVector.length + 63) / 64];
+      }
+      else
+      {
+         Arrays.fill(densitySignature, 0L);
+      }
+      for (int i = 0; i < densityVector.length; i++)
+      {
+         float v = densityVector[i];
+         if (v == 1.0f)
+         {
+            densitySignature[i >> 6] |= 1L << i;
+         }
+         else if (v != 0.0f)
+         {
+            return;
+         }
+      }
+      densitySignatureValid = true;
+   }
+
+
+   // Get density vector element labels: <neighborhood>-<sector x>-<sector y>-<dimension>-<value>,
+   // with sector coordinates in rectified order.
+   public String[] getDensityVectorLabels()
+   {
+      String[] labels = new String[getDensityVector().length];
+
+      for (int i = 0, k = 0; i < NUM_NEIGHBORHOODS; i++)
+      {
+         Neighborhood n = neighborhoods.get(i);
+         for (int j = 0, j2 = n.sectors.length * n.sectors.length; j < j2; j++)
+         {
+            int x = j % n.sectors.length;
+            int y = j / n.sectors.length;
+            for (int d = 0; d < eventDimensions; d++)
+            {
+               if ((n.eventDimensionMap == null) || n.eventDimensionMap[d])
+               {
+                  for (int v = 0; v < eventValueDimensions[d]; v++)
+                  {
+                     labels[k++] = i + "-" + x + "-" + y + "-" + d + "-" + v;
+                  }
+               }
+            }
+         }
+      }
+      return(labels);
+   }
+
+
    // Clear.
    public void clear()
    {
@@ -565,10 +1233,15 @@ public class Morphognostic
                      s.valueDensities[d][i] = 0.0f;
                   }
                }
+               s.densityMask = 0;
             }
          }
+         n.densityMask      = 0;
+         n.aggregationValid = false;
       }
-      events.clear();
+      numEvents          = 0;
+      expiredEventSlot   = -1;
+      densityVectorDirty = true;
    }
 
 
@@ -632,16 +1305,17 @@ public class Morphognostic
             }
          }
       }
-      Utility.saveInt(output, events.size());
-      for (Event event : events)
+      Utility.saveInt(output, numEvents);
+      for (int i = 0; i < numEvents; i++)
       {
-         for (int value : event.values)
+         int slot = getEventSlot(i);
+         for (int d = 0; d < eventDimensions; d++)
          {
-            Utility.saveInt(output, value);
+            Utility.saveInt(output, getEventValue(slot, d));
          }
-         Utility.saveInt(output, event.x);
-         Utility.saveInt(output, event.y);
-         Utility.saveInt(output, event.time);
+         Utility.saveInt(output, eventXbuffer[slot]);
+         Utility.saveInt(output, eventYbuffer[slot]);
+         Utility.saveInt(output, eventTimeBuffer[slot]);
       }
       Utility.saveInt(output, eventTime);
       output.flush();
@@ -719,22 +1393,29 @@ public class Morphognostic
             }
          }
       }
-      m.events.clear();
       int n = Utility.loadInt(input);
+      m.initEventBuffer(Math.max(n, m.maxEventAge + 2));
       for (int i = 0; i < n; i++)
       {
-         int[] values = new int[eventDimensions];
+         int slot = i;
          for (int j = 0; j < eventDimensions; j++)
          {
-            values[j] = Utility.loadInt(input);
+            m.setEventValue(slot, j, Utility.loadInt(input));
          }
-         int   x     = Utility.loadInt(input);
-         int   y     = Utility.loadInt(input);
-         int   t     = Utility.loadInt(input);
-         Event event = m.createEvent(values, x, y, t);
-         m.events.add(m.events.size(), event);
+         m.eventXbuffer[slot]    = Utility.loadInt(input);
+         m.eventYbuffer[slot]    = Utility.loadInt(input);
+         m.eventTimeBuffer[slot] = Utility.loadInt(input);
       }
+      m.numEvents = n;
       m.eventTime = Utility.loadInt(input);
+      if (m.packedEvents)
+      {
+         for (Neighborhood neighborhood : m.neighborhoods)
+         {
+            neighborhood.updateDensityMasks();
+         }
+      }
+      m.densityVectorDirty = true;
 
       return(m);
    }
@@ -779,20 +1460,27 @@ public class Morphognostic
             }
          }
       }
-      m.events.clear();
-      for (int i = 0, j = events.size(); i < j; i++)
+      m.eventBufferCapacity = eventBufferCapacity;
+      m.eventBufferStart    = eventBufferStart;
+      m.numEvents           = numEvents;
+      m.expiredEventSlot    = expiredEventSlot;
+      m.packedEvents        = packedEvents;
+      m.eventValueBuffer    = (eventValueBuffer != null) ? eventValueBuffer.clone() : null;
+      m.eventMaskBuffer     = (eventMaskBuffer != null) ? eventMaskBuffer.clone() : null;
+      m.eventXbuffer        = eventXbuffer.clone();
+      m.eventYbuffer        = eventYbuffer.clone();
+      m.eventTimeBuffer     = eventTimeBuffer.clone();
+      m.eventTime  = eventTime;
+      m.eventNames = eventNames;
+      m.INCREMENTAL_AGGREGATION = INCREMENTAL_AGGREGATION;
+      m.densityVectorDirty      = true;
+      if (m.packedEvents)
       {
-         Event event = events.get(i);
-         int[] values = new int[eventDimensions];
-         for (int k = 0; k < eventDimensions; k++)
+         for (Neighborhood n : m.neighborhoods)
          {
-            values[k] = event.values[k];
+            n.updateDensityMasks();
          }
-         Event event2 = m.createEvent(values, event.x, event.y, event.time);
-         m.events.add(m.events.size(), event2);
       }
-      m.eventTime  = eventTime;
-      m.eventNames = eventNames;
       return(m);
    }
 
@@ -824,6 +1512,13 @@ public class Morphognostic
       int          centerXY = Parameters.NEIGHBORHOOD_DIMENSIONS[neighborhood][0] / 2;
       Neighborhood n        = neighborhoods.get(neighborhood);
 
+      // Packed events: check neighborhood mask for any sector having the event.
+      long bit = 1L << valueIndex;
+      if (packedEvents && ((n.densityMask & bit) == 0))
+      {
+         return(-1);
+      }
+
       for (int x = 0; x < n.sectors.length; x++)
       {
          for (int y = 0; y < n.sectors.length; y++)
@@ -831,7 +1526,7 @@ public class Morphognostic
             Neighborhood.Sector s = n.sectors[x][y];
             if ((x != centerXY) || (y != centerXY))
             {
-               if (s.valueDensities[valueIndex][0] > 0.0f)
+               if (packedEvents ? ((s.densityMask & bit) != 0) : (s.valueDensities[valueIndex][0] > 0.0f))
                {
                   if (verbose)
                   {
@@ -885,7 +1580,7 @@ public class Morphognostic
          }
       }
       Neighborhood.Sector s = n.sectors[centerXY][centerXY];
-      if (s.valueDensities[valueIndex][0] > 0.0f)
+      if (packedEvents ? ((s.densityMask & bit) != 0) : (s.valueDensities[valueIndex][0] > 0.0f))
       {
          if (verbose)
          {
@@ -919,11 +1614,32 @@ public class Morphognostic
          {
             Neighborhood.Sector s = n.sectors[x][y];
             s.valueDensities[valueIndex][0] = 0.0f;
+            s.densityMask &= ~(1L << valueIndex);
          }
       }
-      for (Event event : events)
+      n.densityMask &= ~(1L << valueIndex);
+      if (packedEvents)
+      {
+         long mask = ~(1L << valueIndex);
+         for (int i = 0; i < numEvents; i++)
+         {
+            eventMaskBuffer[getEventSlot(i)] &= mask;
+         }
+      }
+      else
+      {
+         for (int i = 0; i < numEvents; i++)
+         {
+            eventValueBuffer[(getEventSlot(i) * eventDimensions) + valueIndex] = 0;
+         }
+      }
+
+      densityVectorDirty = true;
+
+      // Event values changed: counts must be re-aggregated.
+      for (Neighborhood n2 : neighborhoods)
       {
-         event.values[valueIndex] = 0;
+         n2.aggregationValid = false;
       }
    }
 
@@ -0,0 +1,157 @@
+// For conditions of distribution and use, see copyright notice in Morphognosis.java
+
+package morphognosis;
+
+import java.util.Arrays;
+
+// Immutable morphognostic snapshot: the density vector in the rectified sector
+// order of an orientation, with its density signature when valid, which is all
+// that morphognostics are matched by. The event history is not kept.
+// A morphognostic is reconstructed on demand from a template morphognostic
+// holding the parameters, shared by snapshots having the same parameters.
+public class MorphognosticSnapshot
+{
+   // Density vector, offsets by neighborhood, and signature, null if not valid.
+   public final float[] densities;
+   public final int[]   offsets;
+   public final long[]  signature;
+
+   // Template morphognostic.
+   public final Morphognostic template;
+
+   // Latest template.
+   private static Morphognostic latestTemplate;
+
+   // Constructors.
+   public MorphognosticSnapshot(Morphognostic morphognostic)
+   {
+      this(morphognostic, morphognostic.orientation);
+   }
+
+
+   public MorphognosticSnapshot(Morphognostic morphognostic, int orientation)
+   {
+      densities = morphognostic.copyDensityVector(orientation);
+      template  = getTemplate(morphognostic);
+      offsets   = template.densityVectorOffsets;
+      if (morphognostic.BINARY_VALUE_AGGREGATION)
+      {
+         signature = createSignature(densities);
+      }
+      else
+      {
+         signature = null;
+      }
+   }
+
+
+   // Get shared template having the parameters of morphognostic.
+   private static synchronized Morphognostic getTemplate(Morphognostic morphognostic)
+   {
+      if ((latestTemplate == null) || !sameParameters(latestTemplate, morphognostic))
+      {
+         Morphognostic template = morphognostic.clone();
+         template.clear();
+         template.orientation = Orientation.NORTH;
+         template.getDensityVector();
+         latestTemplate = template;
+      }
+      return(latestTemplate);
+   }
+
+
+   // Morphognostics have the same parameters?
+   private static boolean sameParameters(Morphognostic m1, Morphognostic m2)
+   {
+      if ((m1.NUM_NEIGHBORHOODS != m2.NUM_NEIGHBORHOODS) ||
+          (m1.BINARY_VALUE_AGGREGATION != m2.BINARY_VALUE_AGGREGATION) ||
+          (m1.eventsWidth != m2.eventsWidth) || (m1.eventsHeight != m2.eventsHeight) ||
+          (m1.maxEventAge != m2.maxEventAge) ||
+          !Arrays.equals(m1.eventValueDimensions, m2.eventValueDimensions) ||
+          !Arrays.deepEquals(m1.NEIGHBORHOOD_DIMENSIONS, m2.NEIGHBORHOOD_DIMENSIONS) ||
+          !Arrays.equals(m1.NEIGHBORHOOD_DURATIONS, m2.NEIGHBORHOOD_DURATIONS) ||
+          !Arrays.equals(m1.eventNames, m2.eventNames))
+      {
+         return(false);
+      }
+      for (int i = 0; i < m1.NUM_NEIGHBORHOODS; i++)
+      {
+         if (!Arrays.equals(m1.neighborhoods.get(i).eventDimensionMap, m2.neighborhoods.get(i).eventDimensionMap))
+         {
+            return(false);
+         }
+      }
+      return(true);
+   }
+
+
+   // Create density signature, or null if a density is not 0 or 1.
+   static long[] createSignature(float[] densities)
+   {
+      long[] signature = new long[(densities.length + 63) / 64];
+
+      for (int i = 0; i < densities.length; i++)
+      {
+         float v = densities[i];
+         if (v == 1.0f)
+         {
+            signature[i >> 6] |= 1L << i;
+         }
+         else if (v != 0.0f)
+         {
+            return(null);
+         }
+      }
+      return(signature);
+   }
+
+
+   // Reconstruct morphognostic, without event history.
+   public Morphognostic getMorphognostic()
+   {
+      Morphognostic morphognostic = template.clone();
+
+      morphognostic.setDensityVector(densities);
+      return(morphognostic);
+   }
+
+
+   // Compare morphognostic to snapshot, as Morphognostic.compare does.
+   // Safe for concurrent readers once the morphognostic density vector is built.
+   public float compare(Morphognostic morphognostic)
+   {
+      morphognostic.getDensityVector();
+      if ((signature != null) && morphognostic.densitySignatureValid)
+      {
+         return(morphognostic.compare(signature));
+      }
+      return(morphognostic.compare(densities));
+   }
+
+
+   // Compare snapshots.
+   public float compare(MorphognosticSnapshot snapshot)
+   {
+      if ((signature != null) && (snapshot.signature != null))
+      {
+         int d = 0;
+         for (int i = 0; i < signature.length; i++)
+         {
+            d += Long.bitCount(signature[i] ^ snapshot.signature[i]);
+         }
+         return((float)d);
+      }
+      float[] densities2 = snapshot.densities;
+      float   d          = 0.0f;
+      for (int i = 0, n = offsets.length - 1; i < n; i++)
+      {
+         float c = 0.0f;
+         for (int j = offsets[i], j2 = offsets[i + 1]; j < j2; j++)
+         {
+            c += Math.abs(densities[j] - densities2[j]);
+         }
+         d += c;
+      }
+      return(d);
+   }
+}
@@ -0,0 +1,298 @@
+// For conditions of distribution and use, see copyright notice in Morphognosis.java
+
+package morphognosis;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+// Partitioned metamorph index.
+// Metamorphs are partitioned by a key: their densities for the key event
+// dimensions in all sectors of neighborhood 0. A search visits partitions in
+// increasing order of a lower bound on the distance of their metamorphs, the
+// query's own partition first, and stops at the first partition whose bound
+// exceeds the best distance found.
+// Exact: the bound is the L1 distance between the query and partition key
+// densities, summed in density vector order. Since the compare distance is
+// that sum extended with the remaining non-negative differences, and floating
+// point addition is monotonic, the bound cannot exceed the computed distance.
+// With valid density signatures the distance is a bit count, and the bound is
+// the exact count over the key densities.
+public class PartitionedMetamorphIndex extends MetamorphIndex
+{
+   // Key event dimensions, null for all event dimensions of neighborhood 0.
+   public int[] keyEventDimensions;
+
+   // Density vector positions of key densities, in increasing order.
+   public int[] keyPositions;
+
+   // Partitions, by key, and partition numbers of metamorphs.
+   public ArrayList<Partition> partitions;
+   public HashMap<Partition, Partition> partitionMap;
+   public IndexList partitionNumbers;
+
+   // Number of distances computed by the latest search.
+   public int numCandidates;
+
+   // Partition.
+   public static class Partition
+   {
+      public float[]   key;
+      public int       hash;
+      public int       number;
+      public IndexList indexes;
+
+      public Partition(float[] key)
+      {
+         this.key = key;
+         hash     = Arrays.hashCode(key);
+         indexes  = new IndexList();
+      }
+
+
+      @Override
+      public int hashCode()
+      {
+         return(hash);
+      }
+
+
+      @Override
+      public boolean equals(Object o)
+      {
+         return((o instanceof Partition) && Arrays.equals(key, ((Partition)o).key));
+      }
+   }
+
+   // Constructors.
+   public PartitionedMetamorphIndex()
+   {
+      this(null);
+   }
+
+
+   public PartitionedMetamorphIndex(int[] keyEventDimensions)
+   {
+      this.keyEventDimensions = keyEventDimensions;
+      reset();
+   }
+
+
+   @Override
+   public int getType()
+   {
+      return(PARTITIONED);
+   }
+
+
+   @Override
+   protected void reset()
+   {
+      keyPositions = null;
+      partitions   = new ArrayList<Partition>();
+      partitionMap = new HashMap<Partition, Partition>();
+      partitionNumbers = new IndexList();
+   }
+
+
+   @Override
+   protected void add(int index)
+   {
+      Metamorph metamorph = metamorphs.get(index);
+
+      if (keyPositions == null)
+      {
+         keyPositions = getKeyPositions(metamorph.getMorphognostic());
+      }
+      Partition partition = new Partition(getKey(metamorph.getDensityVector()));
+      Partition p         = partitionMap.get(partition);
+      if (p == null)
+      {
+         partition.number = partitions.size();
+         partitionMap.put(partition, partition);
+         partitions.add(partition);
+         p = partition;
+      }
+      p.indexes.add(index);
+      partitionNumbers.add(p.number);
+   }
+
+
+   // Get density vector positions of key event dimensions in neighborhood 0.
+   private int[] getKeyPositions(Morphognostic morphognostic)
+   {
+      Morphognostic.Neighborhood n = morphognostic.neighborhoods.get(0);
+      boolean[] key = new boolean[morphognostic.eventDimensions];
+
+      for (int d = 0; d < key.length; d++)
+      {
+         key[d] = (keyEventDimensions == null);
+      }
+      if (keyEventDimensions != null)
+      {
+         for (int d : keyEventDimensions)
+         {
+            if ((d >= 0) && (d < key.length))
+            {
+               key[d] = true;
+            }
+         }
+      }
+      IndexList positions = new IndexList();
+      for (int s = 0, k = 0, numSectors = n.sectors.length * n.sectors.length; s < numSectors; s++)
+      {
+         for (int d = 0; d < morphognostic.eventDimensions; d++)
+         {
+            if ((n.eventDimensionMap == null) || n.eventDimensionMap[d])
+            {
+               for (int j = 0; j < morphognostic.eventValueDimensions[d]; j++, k++)
+               {
+                  if (key[d])
+                  {
+                     positions.add(k);
+                  }
+               }
+            }
+         }
+      }
+      return(Arrays.copyOf(positions.indexes, positions.size()));
+   }
+
+
+   // Get key of density vector.
+   private float[] getKey(float[] densities)
+   {
+      float[] key = new float[keyPositions.length];
+
+      for (int i = 0; i < key.length; i++)
+      {
+         key[i] = densities[keyPositions[i]];
+      }
+      return(key);
+   }
+
+
+   // Get lower bounds of the distances of partition metamorphs from the morphognostic.
+   private float[] getBounds(Morphognostic morphognostic)
+   {
+      float[] densities = morphognostic.getDensityVector();
+      float[] bounds    = new float[partitions.size()];
+
+      for (int i = 0; i < bounds.length; i++)
+      {
+         float[] key   = partitions.get(i).key;
+         float   bound = 0.0f;
+         for (int j = 0; j < key.length; j++)
+         {
+            bound += Math.abs(densities[keyPositions[j]] - key[j]);
+         }
+         bounds[i] = bound;
+      }
+      return(bounds);
+   }
+
+
+   @Override
+   public void nearest(Morphognostic morphognostic, int limit, SearchResult result)
+   {
+      result.clear();
+      numCandidates = 0;
+      if (keyPositions != null)
+      {
+         new Search(morphognostic).nearest(limit, result);
+      }
+   }
+
+
+   // Search in one pass in index order, as a linear scan does, skipping the
+   // metamorphs whose partition bound exceeds the running minimum distance:
+   // they can neither be found by the scan nor lower its minimum.
+   @Override
+   public void search(Morphognostic morphognostic, SearchResult result)
+   {
+      result.clear();
+      numCandidates = 0;
+      if (keyPositions == null)
+      {
+         return;
+      }
+      float[] bounds = getBounds(morphognostic);
+      float   best   = Float.POSITIVE_INFINITY;
+      for (int i = 0, n = metamorphs.size(); i < n; i++)
+      {
+         if (bounds[partitionNumbers.get(i)] <= best)
+         {
+            float d = distance(morphognostic, i);
+            numCandidates++;
+            if (d <= best)
+            {
+               best = d;
+               result.add(i, d);
+            }
+         }
+      }
+   }
+
+
+   // Nearest neighbor search over partitions in increasing bound order.
+   private class Search
+   {
+      Morphognostic morphognostic;
+      Partition[]   order;
+      float[]       bounds;
+
+      Search(Morphognostic morphognostic)
+      {
+         this.morphognostic = morphognostic;
+         float[] partitionBounds = getBounds(morphognostic);
+         int     n = partitionBounds.length;
+
+         // Bounds are non-negative, so their bits sort as they do.
+         long[] entries = new long[n];
+         for (int i = 0; i < n; i++)
+         {
+            entries[i] = ((long)Float.floatToRawIntBits(partitionBounds[i]) << 32) | i;
+         }
+         Arrays.sort(entries);
+         order  = new Partition[n];
+         bounds = new float[n];
+         for (int i = 0; i < n; i++)
+         {
+            order[i]  = partitions.get((int)entries[i]);
+            bounds[i] = Float.intBitsToFloat((int)(entries[i] >> 32));
+         }
+      }
+
+
+      // Find metamorphs with index less than limit at the minimum distance.
+      void nearest(int limit, SearchResult result)
+      {
+         float best = Float.POSITIVE_INFINITY;
+
+         result.clear();
+         for (int i = 0; (i < order.length) && (bounds[i] <= best); i++)
+         {
+            IndexList indexes = order[i].indexes;
+            for (int j = 0, n = indexes.size(); j < n; j++)
+            {
+               int index = indexes.get(j);
+               if (index >= limit)
+               {
+                  break;
+               }
+               float d = distance(morphognostic, index);
+               numCandidates++;
+               if (d < best)
+               {
+                  best = d;
+                  result.clear();
+               }
+               if (d == best)
+               {
+                  result.add(index, d);
+               }
+            }
+         }
+      }
+   }
+}
@@ -0,0 +1,418 @@
+// For conditions of distribution and use, see copyright notice in Morphognosis.java
+
+package morphognosis;
+
+import java.util.Arrays;
+
+// Vantage point tree metamorph index.
+// Metamorphs are inserted into leaf buckets, which are split about a vantage
+// point at the median distance when full. Each node keeps the range of distances
+// from its vantage point to the metamorphs of each child, and the minimum index
+// of its metamorphs, so searches can skip children that are too far away or
+// hold no metamorphs below the index limit.
+// Metamorphs at the median distance go to alternate children, and a subtree
+// deeper than twice the log of its size is rebuilt about new medians, so time
+// ordered inserts and equal distances do not grow long chains.
+// The compare distance is computed in floating point, so the triangle inequality
+// bounds are relaxed by the worst case relative rounding error of the sum.
+public class VPTreeMetamorphIndex extends MetamorphIndex
+{
+   // Leaf bucket size.
+   public static int BUCKET_SIZE = 16;
+
+   // Root.
+   public Node root;
+
+   // Tree node.
+   public static class Node
+   {
+      // Leaf bucket of metamorph indexes, null if split.
+      public int[] bucket;
+      public int   bucketSize;
+
+      // Vantage point metamorph index.
+      public int vantage;
+
+      // Children: inner holds metamorphs closer than the median distance to the vantage point.
+      public float median;
+      public Node  inner, outer;
+      public float innerMin, innerMax;
+      public float outerMin, outerMax;
+
+      // Next child for a metamorph at the median distance.
+      public boolean tieInner;
+
+      // Minimum metamorph index and number of metamorphs.
+      public int minIndex;
+      public int size;
+
+      public Node()
+      {
+         bucket     = new int[BUCKET_SIZE + 1];
+         bucketSize = 0;
+         vantage    = -1;
+         innerMin   = outerMin = Float.POSITIVE_INFINITY;
+         innerMax   = outerMax = Float.NEGATIVE_INFINITY;
+         minIndex   = Integer.MAX_VALUE;
+         size       = 0;
+      }
+
+
+      // Go to inner child for distance from the vantage point?
+      boolean toInner(float d)
+      {
+         if (d == median)
+         {
+            tieInner = !tieInner;
+            return(!tieInner);
+         }
+         return(d < median);
+      }
+   }
+
+   // Insertion path.
+   private Node[] path = new Node[16];
+
+   @Override
+   public int getType()
+   {
+      return(VP_TREE);
+   }
+
+
+   @Override
+   protected void reset()
+   {
+      root = null;
+   }
+
+
+   @Override
+   protected void add(int index)
+   {
+      if (root == null)
+      {
+         root = new Node();
+      }
+      Node node  = root;
+      int  depth = 0;
+      while (true)
+      {
+         if (depth == path.length)
+         {
+            path = Arrays.copyOf(path, depth * 2);
+         }
+         path[depth] = node;
+         node.size++;
+         if (index < node.minIndex)
+         {
+            node.minIndex = index;
+         }
+         if (node.bucket != null)
+         {
+            node.bucket[node.bucketSize++] = index;
+            if (node.bucketSize > BUCKET_SIZE)
+            {
+               build(node, Arrays.copyOf(node.bucket, node.bucketSize), node.bucketSize);
+            }
+            break;
+         }
+         float d = distance(index, node.vantage);
+         if (node.toInner(d))
+         {
+            node.innerMin = Math.min(node.innerMin, d);
+            node.innerMax = Math.max(node.innerMax, d);
+            if (node.inner == null)
+            {
+               node.inner = new Node();
+            }
+            node = node.inner;
+         }
+         else
+         {
+            node.outerMin = Math.min(node.outerMin, d);
+            node.outerMax = Math.max(node.outerMax, d);
+            if (node.outer == null)
+            {
+               node.outer = new Node();
+            }
+            node = node.outer;
+         }
+         depth++;
+      }
+
+      // Rebuild the highest subtree on the path that is too deep for its size.
+      for (int i = 0; i < depth; i++)
+      {
+         if (depth - i > 2 * (32 - Integer.numberOfLeadingZeros(path[i].size)))
+         {
+            build(path[i], collect(path[i]), path[i].size);
+            break;
+         }
+      }
+   }
+
+
+   // Collect metamorph indexes of subtree.
+   private int[] collect(Node node)
+   {
+      int[]  indexes = new int[node.size];
+      int    n       = 0;
+      Node[] stack   = new Node[16];
+      int    top     = 0;
+
+      stack[top++] = node;
+      while (top > 0)
+      {
+         node = stack[--top];
+         if (node.bucket != null)
+         {
+            System.arraycopy(node.bucket, 0, indexes, n, node.bucketSize);
+            n += node.bucketSize;
+            continue;
+         }
+         indexes[n++] = node.vantage;
+         if (top + 2 > stack.length)
+         {
+            stack = Arrays.copyOf(stack, stack.length * 2);
+         }
+         if (node.inner != null)
+         {
+            stack[top++] = node.inner;
+         }
+         if (node.outer != null)
+         {
+            stack[top++] = node.outer;
+         }
+      }
+      return(indexes);
+   }
+
+
+   // Build subtree of metamorphs at node, splitting each node with more than a
+   // bucket of metamorphs about its first metamorph.
+   private void build(Node node, int[] indexes, int n)
+   {
+      Node[]  nodes  = new Node[16];
+      int[][] sets   = new int[16][];
+      int[]   counts = new int[16];
+      int     top    = 0;
+
+      nodes[top]  = node;
+      sets[top]   = indexes;
+      counts[top] = n;
+      top++;
+      while (top > 0)
+      {
+         top--;
+         node    = nodes[top];
+         indexes = sets[top];
+         n       = counts[top];
+         node.inner    = node.outer = null;
+         node.innerMin = node.outerMin = Float.POSITIVE_INFINITY;
+         node.innerMax = node.outerMax = Float.NEGATIVE_INFINITY;
+         node.tieInner = false;
+         node.size     = n;
+         node.minIndex = Integer.MAX_VALUE;
+         for (int i = 0; i < n; i++)
+         {
+            node.minIndex = Math.min(node.minIndex, indexes[i]);
+         }
+         if (n <= BUCKET_SIZE)
+         {
+            node.bucket = new int[BUCKET_SIZE + 1];
+            System.arraycopy(indexes, 0, node.bucket, 0, n);
+            node.bucketSize = n;
+            node.vantage    = -1;
+            continue;
+         }
+         int     vantage   = indexes[0];
+         float[] distances = new float[n];
+         for (int i = 1; i < n; i++)
+         {
+            distances[i] = distance(vantage, indexes[i]);
+         }
+         float[] sorted = Arrays.copyOfRange(distances, 1, n);
+         Arrays.sort(sorted);
+         node.median     = (sorted.length > 0 ? sorted[sorted.length / 2] : 0.0f);
+         node.vantage    = vantage;
+         node.bucket     = null;
+         node.bucketSize = 0;
+         int[] inner      = new int[n - 1];
+         int[] outer      = new int[n - 1];
+         int   innerCount = 0;
+         int   outerCount = 0;
+         for (int i = 1; i < n; i++)
+         {
+            float d = distances[i];
+            if (node.toInner(d))
+            {
+               node.innerMin       = Math.min(node.innerMin, d);
+               node.innerMax       = Math.max(node.innerMax, d);
+               inner[innerCount++] = indexes[i];
+            }
+            else
+            {
+               node.outerMin       = Math.min(node.outerMin, d);
+               node.outerMax       = Math.max(node.outerMax, d);
+               outer[outerCount++] = indexes[i];
+            }
+         }
+         if (top + 2 > nodes.length)
+         {
+            nodes  = Arrays.copyOf(nodes, nodes.length * 2);
+            sets   = Arrays.copyOf(sets, sets.length * 2);
+            counts = Arrays.copyOf(counts, counts.length * 2);
+         }
+         if (innerCount > 0)
+         {
+            node.inner  = new Node();
+            nodes[top]  = node.inner;
+            sets[top]   = inner;
+            counts[top] = innerCount;
+            top++;
+         }
+         if (outerCount > 0)
+         {
+            node.outer  = new Node();
+            nodes[top]  = node.outer;
+            sets[top]   = outer;
+            counts[top] = outerCount;
+            top++;
+         }
+      }
+   }
+
+
+   @Override
+   public void nearest(Morphognostic morphognostic, int limit, SearchResult result)
+   {
+      result.clear();
+      if (root != null)
+      {
+         new Search(morphognostic, limit, result).search(root);
+      }
+   }
+
+
+   // Nearest neighbor search.
+   private class Search
+   {
+      Morphognostic morphognostic;
+      int           limit;
+      SearchResult  result;
+      float         best;
+      float         error;
+
+      Search(Morphognostic morphognostic, int limit, SearchResult result)
+      {
+         this.morphognostic = morphognostic;
+         this.limit         = limit;
+         this.result        = result;
+         best = Float.POSITIVE_INFINITY;
+
+         // Relative rounding error bound of the distance sum, doubled for the
+         // two distances in each bound, with margin.
+         error = (float)(morphognostic.getDensityVector().length +
+                         morphognostic.NUM_NEIGHBORHOODS + 2) * 0x1.0p-21f;
+      }
+
+
+      // Search depth first, nearer child first. Children are stacked with
+      // the lower bound of their distances, checked against the best distance
+      // when they are popped.
+      void search(Node root)
+      {
+         Node[]  nodes  = new Node[32];
+         float[] bounds = new float[32];
+         int     top    = 0;
+
+         nodes[top]    = root;
+         bounds[top++] = Float.NEGATIVE_INFINITY;
+         while (top > 0)
+         {
+            top--;
+            Node node = nodes[top];
+            if ((bounds[top] > best) || (node.minIndex >= limit))
+            {
+               continue;
+            }
+            if (node.bucket != null)
+            {
+               for (int i = 0; i < node.bucketSize; i++)
+               {
+                  int index = node.bucket[i];
+                  if (index < limit)
+                  {
+                     visit(index, distance(morphognostic, index));
+                  }
+               }
+               continue;
+            }
+            float d = distance(morphognostic, node.vantage);
+            if (node.vantage < limit)
+            {
+               visit(node.vantage, d);
+            }
+            if (top + 2 > nodes.length)
+            {
+               nodes  = Arrays.copyOf(nodes, nodes.length * 2);
+               bounds = Arrays.copyOf(bounds, bounds.length * 2);
+            }
+            if (d < node.median)
+            {
+               top = push(nodes, bounds, top, node.outer, d, node.outerMin, node.outerMax);
+               top = push(nodes, bounds, top, node.inner, d, node.innerMin, node.innerMax);
+            }
+            else
+            {
+               top = push(nodes, bounds, top, node.inner, d, node.innerMin, node.innerMax);
+               top = push(nodes, bounds, top, node.outer, d, node.outerMin, node.outerMax);
+            }
+         }
+      }
+
+
+      // Push child with the lower bound of the distances of its metamorphs
+      // given its distance range from the vantage point, unless the bound
+      // already excludes metamorphs within the best distance.
+      // Returns the new stack top.
+      int push(Node[] nodes, float[] bounds, int top, Node child, float d, float min, float max)
+      {
+         if (child == null)
+         {
+            return(top);
+         }
+         float bound = 0.0f;
+         if (d < min)
+         {
+            bound = min - d;
+         }
+         else if (d > max)
+         {
+            bound = d - max;
+         }
+         bound -= error * (d + max);
+         if (bound <= best)
+         {
+            nodes[top]    = child;
+            bounds[top++] = bound;
+         }
+         return(top);
+      }
+
+
+      void visit(int index, float d)
+      {
+         if (d < best)
+         {
+            best = d;
+            result.clear();
+         }
+         if (d == best)
+         {
+            result.add(index, d);
+         }
+      }
+   }
+}
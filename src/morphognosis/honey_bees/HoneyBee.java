@@ -14,7 +14,7 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.Random;
 
-import morphognosis.Metamorph;
+import morphognosis.MetamorphIndex;
 import morphognosis.Morphognostic;
 import morphognosis.Orientation;
 import morphognosis.Utility;
@@ -34,6 +34,9 @@ public class HoneyBee
    public int     driverResponse;
    public Random  random;
 
+   // Awaiting metamorph neural network response from a batch of bees.
+   public boolean awaitingNNresponse;
+
    // Sensors.
    public static final int HIVE_PRESENCE_INDEX          = 0;
    public static final int NECTAR_PRESENCE_INDEX        = 1;
@@ -62,10 +65,15 @@ public class HoneyBee
    public static final int SURPLUS_NECTAR_EVENT        = 2;
    public static final int NECTAR_LONG_DISTANCE_EVENT  = 11;
    public static final int NECTAR_SHORT_DISTANCE_EVENT = 12;
+   public static final int ORIENTATION_EVENT           = 13;
+   public static final int NECTAR_CARRY_EVENT          = 21;
 
    // Morphognostic.
    public Morphognostic morphognostic;
 
+   // Metamorph DB search candidates.
+   public MetamorphIndex.SearchResult metamorphCandidates = new MetamorphIndex.SearchResult();
+
    /*
     * Morphognostic event.
     *
@@ -908,13 +916,15 @@ public class HoneyBee
       // Handling nectar?
       if (handlingNectar = autopilotResponse(false))
       {
-         Metamorph metamorph = null;
-         float     d         = 0.0f;
-         float     d2;
-         for (Metamorph m : world.metamorphs)
+         int   metamorph = -1;
+         float d         = 0.0f;
+         float d2;
+         world.searchMetamorphs(morphognostic, metamorphCandidates);
+         for (int i = 0; i < metamorphCandidates.size; i++)
          {
-            d2 = morphognostic.compare(m.morphognostic);
-            if ((metamorph == null) || (d2 < d))
+            int m = metamorphCandidates.indexes[i];
+            d2 = metamorphCandidates.distances[i];
+            if ((metamorph == -1) || (d2 < d))
             {
                d         = d2;
                metamorph = m;
@@ -931,9 +941,10 @@ public class HoneyBee
                }
             }
          }
-         if (metamorph != null)
+         if (metamorph != -1)
          {
-            response = metamorph.response;
+            response = world.getMetamorphResponse(metamorph);
+            world.matchMetamorph(metamorph);
          }
          else
          {
@@ -977,28 +988,15 @@ public class HoneyBee
                return;
             }
 
-            // Get NN response.
-            response = world.metamorphNN.respond(morphognostic);
-            if (debugNN)
+            // Get NN response, or await it from the batch.
+            if (world.batchingMetamorphNN)
             {
-               if (response == EXTRACT_NECTAR)
-               {
-                  try
-                  {
-                     Thread.sleep(3000);
-                  }
-                  catch (InterruptedException e) {}
-               }
-               int checkLongSurplus  = morphognostic.locateEvent(2, SURPLUS_NECTAR_EVENT, false);
-               int checkShortSurplus = morphognostic.locateEvent(1, SURPLUS_NECTAR_EVENT, false);
-               int checkLongDist     = morphognostic.locateEvent(2, NECTAR_LONG_DISTANCE_EVENT, false);
-               int checkShortDist    = morphognostic.locateEvent(1, NECTAR_SHORT_DISTANCE_EVENT, false);
-               int i = 3;
-               for ( ; i < 11; i++)
-               {
-                  if (morphognostic.locateEvent(0, i, false) != -1) { break; }
-               }
-               System.out.println("bee=" + id + ",response=" + response + ",checkLongSurplus=" + checkLongSurplus + ",checkLongDist=" + checkLongDist + ",checkShortSurplus=" + checkShortSurplus + ",checkShortDist=" + checkShortDist + ",checko=" + (i - 3) + ",distanceDisplay=" + nectarDistanceDisplay);
+               awaitingNNresponse = true;
+               response           = WAIT;
+            }
+            else
+            {
+               setMetamorphNNresponse(world.metamorphNN.respond(morphognostic));
             }
          }
          else
@@ -1010,41 +1008,73 @@ public class HoneyBee
    }
 
 
+   // Set metamorph neural network response.
+   public void setMetamorphNNresponse(int response)
+   {
+      this.response      = response;
+      awaitingNNresponse = false;
+      if (debugNN)
+      {
+         if (response == EXTRACT_NECTAR)
+         {
+            try
+            {
+               Thread.sleep(3000);
+            }
+            catch (InterruptedException e) {}
+         }
+         int checkLongSurplus  = morphognostic.locateEvent(2, SURPLUS_NECTAR_EVENT, false);
+         int checkShortSurplus = morphognostic.locateEvent(1, SURPLUS_NECTAR_EVENT, false);
+         int checkLongDist     = morphognostic.locateEvent(2, NECTAR_LONG_DISTANCE_EVENT, false);
+         int checkShortDist    = morphognostic.locateEvent(1, NECTAR_SHORT_DISTANCE_EVENT, false);
+         int i = 3;
+         for ( ; i < 11; i++)
+         {
+            if (morphognostic.locateEvent(0, i, false) != -1) { break; }
+         }
+         System.out.println("bee=" + id + ",response=" + response + ",checkLongSurplus=" + checkLongSurplus + ",checkLongDist=" + checkLongDist + ",checkShortSurplus=" + checkShortSurplus + ",checkShortDist=" + checkShortDist + ",checko=" + (i - 3) + ",distanceDisplay=" + nectarDistanceDisplay);
+      }
+   }
+
+
    // Get goal-seeking DB response.
    public void metamorphGoalSeekingDBresponse()
    {
-      Metamorph metamorph    = null;
-      float     minCompare   = 0.0f;
-      float     maxGoalValue = 0.0f;
+      int   metamorph    = -1;
+      float minCompare   = 0.0f;
+      float maxGoalValue = 0.0f;
 
-      for (int i = 0, j = world.metamorphs.size(); i < j; i++)
+      world.searchMetamorphs(morphognostic, metamorphCandidates);
+      for (int i = 0; i < metamorphCandidates.size; i++)
       {
-         Metamorph m       = world.metamorphs.get(i);
-         float     compare = m.morphognostic.compare(morphognostic);
-         if (metamorph == null)
+         int   m         = metamorphCandidates.indexes[i];
+         float compare   = metamorphCandidates.distances[i];
+         float goalValue = world.getMetamorphGoalValue(m);
+         if (metamorph == -1)
          {
             metamorph    = m;
             minCompare   = compare;
-            maxGoalValue = metamorph.goalValue;
+            maxGoalValue = goalValue;
          }
          else if (compare < minCompare)
          {
             metamorph    = m;
             minCompare   = compare;
-            maxGoalValue = metamorph.goalValue;
+            maxGoalValue = goalValue;
          }
          else if (compare == minCompare)
          {
-            if (m.goalValue > maxGoalValue)
+            if (goalValue > maxGoalValue)
             {
                metamorph    = m;
-               maxGoalValue = metamorph.goalValue;
+               maxGoalValue = goalValue;
             }
          }
       }
-      if (metamorph != null)
+      if (metamorph != -1)
       {
-         response = metamorph.response;
+         response = world.getMetamorphResponse(metamorph);
+         world.matchMetamorph(metamorph);
       }
       else
       {
@@ -38,6 +38,9 @@ import java.util.Random;
 
 import javax.swing.UIManager;
 
+import morphognosis.LSHMetamorphIndex;
+import morphognosis.LinearMetamorphIndex;
+import morphognosis.MetamorphIndex;
 import morphognosis.Morphognosis;
 
 public class Main
@@ -72,26 +75,58 @@ public class Main
       "        [-NNtrainingTime <quantity> (default=" + Parameters.NN_TRAINING_TIME + ")]\n" +
       "     [-driver <autopilot | metamorphDB | metamorphNN | autopilotGoalSeeking | metamorphGoalSeekingDB | metamorphGoalSeekingNN | local_override> (honey bees driver: default=autopilot)]\n" +
       "     [-randomSeed <random number seed> (default=" + DEFAULT_RANDOM_SEED + ")]\n" +
+      "     [-metamorphCapacity <maximum metamorphs> (0=unbounded: default=" + World.METAMORPH_CAPACITY + ")]\n" +
+      "     [-metamorphEviction <leastRecentlyMatched | lowestGoalValue | leastFrequentlyMatched> (eviction policy at capacity: default=leastRecentlyMatched)]\n" +
+      "     [-metamorphIndex <linear | vptree | lsh | partitioned> (metamorph DB search index, lsh is approximate: default=" + MetamorphIndex.toName(World.METAMORPH_INDEX_TYPE) + ")]\n" +
+      "     [-lsh <tables> <bits> <probes> (lsh index hash tables, bits per hash, and additional buckets probed per table: default=" + LSHMetamorphIndex.TABLES + " " + LSHMetamorphIndex.TABLE_BITS + " " + LSHMetamorphIndex.PROBES + ")]\n" +
+      "     [-metamorphPartitionKey <all | <event dimension>[,<event dimension>...]> (partitioned index key events of neighborhood 0: default=" + partitionKeyToString(World.METAMORPH_PARTITION_KEY) + ")]\n" +
+      "     [-parallelScanThreshold <metamorphs> (minimum metamorphs for parallel linear and metamorph DB search, 0=never: default=" + LinearMetamorphIndex.PARALLEL_THRESHOLD + ")]\n" +
+      "     [-offHeapMetamorphs (store metamorph densities off-heap, without morphognostic event histories)]\n" +
+      "     [-metamorphCache <capacity> (metamorph search results cached by morphognostic, 0=no cache: default=" + World.METAMORPH_CACHE_CAPACITY + ")]\n" +
+      "     [-compactMetamorphs <radius> [<interval steps>] (merge metamorphs within radius of same-response prototypes, before the run and every interval steps)]\n" +
       "     [-printCollectedNectar]\n" +
+      "     [-printMetamorphEvictions]\n" +
+      "     [-printMetamorphCacheStats]\n" +
       "     [-save <file name>]\n" +
       "     [-saveNN <metamorph neural network file name>]\n" +
       "     [-loadNN <metamorph neural network file name>]\n" +
+      "     [-trainNNinterval <steps> (train metamorph neural network in background every interval steps, bees switching to it when trained)]\n" +
+      "     [-trainNNonline (background training updates the network with metamorphs added since the latest training, replaying earlier ones)]\n" +
+      "     [-trainNNdense (train metamorph neural network on a dense matrix of density vectors without Weka)]\n" +
       "     [-saveGoalSeekingNN <metamorph goal-seeking neural network file name>]\n" +
       "     [-loadGoalSeekingNN <metamorph goal-seeking neural network file name>]\n" +
       "     [-writeMetamorphDataset [<file name>] (write metamorph dataset file, default=" + World.METAMORPH_DATASET_FILE_BASENAME + ".csv)]\n" +
+      "     [-openMetamorphDB <metamorph DB file name> (memory-map metamorph DB file searched by metamorph DB drivers)]\n" +
+      "     [-writeMetamorphDB <metamorph DB file name> (write metamorphs to memory-mappable metamorph DB file)]\n" +
       "  Resume run:\n" +
       "    java morphognosis.honey_bees.Main\n" +
       "      -load <file name>\n" +
       "     [-steps <steps> | -display (default)]\n" +
       "     [-driver <autopilot | metamorphDB | metamorphNN | autopilotGoalSeeking | metamorphGoalSeekingDB | metamorphGoalSeekingNN | local_override>\n\t(default=autopilot)]\n" +
       "     [-randomSeed <random number seed>]\n" +
+      "     [-metamorphCapacity <maximum metamorphs> (default=" + World.METAMORPH_CAPACITY + ")]\n" +
+      "     [-metamorphEviction <leastRecentlyMatched | lowestGoalValue | leastFrequentlyMatched> (default=leastRecentlyMatched)]\n" +
+      "     [-metamorphIndex <linear | vptree | lsh | partitioned> (default=" + MetamorphIndex.toName(World.METAMORPH_INDEX_TYPE) + ")]\n" +
+      "     [-lsh <tables> <bits> <probes> (default=" + LSHMetamorphIndex.TABLES + " " + LSHMetamorphIndex.TABLE_BITS + " " + LSHMetamorphIndex.PROBES + ")]\n" +
+      "     [-metamorphPartitionKey <all | <event dimension>[,<event dimension>...]> (default=" + partitionKeyToString(World.METAMORPH_PARTITION_KEY) + ")]\n" +
+      "     [-parallelScanThreshold <metamorphs> (default=" + LinearMetamorphIndex.PARALLEL_THRESHOLD + ")]\n" +
+      "     [-offHeapMetamorphs]\n" +
+      "     [-metamorphCache <capacity> (default=" + World.METAMORPH_CACHE_CAPACITY + ")]\n" +
+      "     [-compactMetamorphs <radius> [<interval steps>]]\n" +
       "     [-printCollectedNectar]\n" +
+      "     [-printMetamorphEvictions]\n" +
+      "     [-printMetamorphCacheStats]\n" +
       "     [-save <file name>]\n" +
       "     [-saveNN <metamorph neural network file name>]\n" +
       "     [-loadNN <metamorph neural network file name>]\n" +
+      "     [-trainNNinterval <steps>]\n" +
+      "     [-trainNNonline]\n" +
+      "     [-trainNNdense]\n" +
       "     [-saveGoalSeekingNN <metamorph goal-seeking neural network file name>]\n" +
       "     [-loadGoalSeekingNN <metamorph goal-seeking neural network file name>]\n" +
       "     [-writeMetamorphDataset [<file name>] (write metamorph dataset file, default=" + World.METAMORPH_DATASET_FILE_BASENAME + ".csv)]\n" +
+      "     [-openMetamorphDB <metamorph DB file name>]\n" +
+      "     [-writeMetamorphDB <metamorph DB file name>]\n" +
       "  Print parameters:\n" +
       "    java morphognosis.honey_bees.Main -printParameters\n" +
       "  Version:\n" +
@@ -267,6 +302,26 @@ public class Main
    }
 
 
+   // Partition key event dimensions to string.
+   public static String partitionKeyToString(int[] key)
+   {
+      if (key == null)
+      {
+         return("all");
+      }
+      String s = "";
+      for (int i = 0; i < key.length; i++)
+      {
+         if (i > 0)
+         {
+            s += ",";
+         }
+         s += key[i];
+      }
+      return(s);
+   }
+
+
    // Main.
    // Exit codes:
    // 0=success
@@ -278,6 +333,8 @@ public class Main
       int     steps  = -1;
       int     driver = Driver.AUTOPILOT;
       boolean printCollectedNectar = false;
+      boolean printEvictions       = false;
+      boolean printCacheStats      = false;
       String  loadfile             = null;
       String  savefile             = null;
       boolean display               = true;
@@ -289,6 +346,9 @@ public class Main
       String  goalSeekingNNsavefile = null;
       boolean gotDatasetParm        = false;
       String  datasetFilename       = World.METAMORPH_DATASET_FILE_BASENAME + ".csv";
+      String  metamorphDBopenfile   = null;
+      String  metamorphDBwritefile  = null;
+      boolean compactMetamorphs     = false;
 
       for (int i = 0; i < args.length; i++)
       {
@@ -464,6 +524,192 @@ public class Main
             }
             continue;
          }
+         if (args[i].equals("-metamorphCapacity"))
+         {
+            i++;
+            if (i >= args.length)
+            {
+               System.err.println("Invalid metamorphCapacity option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            try
+            {
+               World.METAMORPH_CAPACITY = Integer.parseInt(args[i]);
+            }
+            catch (NumberFormatException e) {
+               System.err.println("Invalid metamorphCapacity option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            if (World.METAMORPH_CAPACITY < 0)
+            {
+               System.err.println("Invalid metamorphCapacity option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            continue;
+         }
+         if (args[i].equals("-metamorphEviction"))
+         {
+            i++;
+            if (i >= args.length)
+            {
+               System.err.println("Invalid metamorphEviction option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            if (args[i].equals("leastRecentlyMatched"))
+            {
+               World.METAMORPH_EVICTION_POLICY = World.EVICT_LEAST_RECENTLY_MATCHED;
+            }
+            else if (args[i].equals("lowestGoalValue"))
+            {
+               World.METAMORPH_EVICTION_POLICY = World.EVICT_LOWEST_GOAL_VALUE;
+            }
+            else if (args[i].equals("leastFrequentlyMatched"))
+            {
+               World.METAMORPH_EVICTION_POLICY = World.EVICT_LEAST_FREQUENTLY_MATCHED;
+            }
+            else
+            {
+               System.err.println("Invalid metamorphEviction option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            continue;
+         }
+         if (args[i].equals("-metamorphIndex"))
+         {
+            i++;
+            if ((i >= args.length) || (MetamorphIndex.fromName(args[i]) == -1))
+            {
+               System.err.println("Invalid metamorphIndex option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            World.METAMORPH_INDEX_TYPE = MetamorphIndex.fromName(args[i]);
+            continue;
+         }
+         if (args[i].equals("-lsh"))
+         {
+            if (i + 3 >= args.length)
+            {
+               System.err.println("Invalid lsh option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            try
+            {
+               LSHMetamorphIndex.TABLES     = Integer.parseInt(args[++i]);
+               LSHMetamorphIndex.TABLE_BITS = Integer.parseInt(args[++i]);
+               LSHMetamorphIndex.PROBES     = Integer.parseInt(args[++i]);
+            }
+            catch (NumberFormatException e) {
+               System.err.println("Invalid lsh option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            if ((LSHMetamorphIndex.TABLES <= 0) || (LSHMetamorphIndex.TABLE_BITS <= 0) ||
+                (LSHMetamorphIndex.TABLE_BITS > 64) || (LSHMetamorphIndex.PROBES < 0))
+            {
+               System.err.println("Invalid lsh option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            continue;
+         }
+         if (args[i].equals("-metamorphPartitionKey"))
+         {
+            i++;
+            if (i >= args.length)
+            {
+               System.err.println("Invalid metamorphPartitionKey option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            if (args[i].equals("all"))
+            {
+               World.METAMORPH_PARTITION_KEY = null;
+               continue;
+            }
+            String[] dimensions = args[i].split(",");
+            World.METAMORPH_PARTITION_KEY = new int[dimensions.length];
+            try
+            {
+               for (int j = 0; j < dimensions.length; j++)
+               {
+                  World.METAMORPH_PARTITION_KEY[j] = Integer.parseInt(dimensions[j].trim());
+               }
+            }
+            catch (NumberFormatException e) {
+               System.err.println("Invalid metamorphPartitionKey option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            for (int d : World.METAMORPH_PARTITION_KEY)
+            {
+               if ((d < 0) || (d > HoneyBee.NECTAR_CARRY_EVENT))
+               {
+                  System.err.println("Invalid metamorphPartitionKey option");
+                  System.err.println(Usage);
+                  System.exit(1);
+               }
+            }
+            continue;
+         }
+         if (args[i].equals("-parallelScanThreshold"))
+         {
+            i++;
+            if (i >= args.length)
+            {
+               System.err.println("Invalid parallelScanThreshold option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            try
+            {
+               LinearMetamorphIndex.PARALLEL_THRESHOLD = Integer.parseInt(args[i]);
+            }
+            catch (NumberFormatException e) {
+               System.err.println("Invalid parallelScanThreshold option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            if (LinearMetamorphIndex.PARALLEL_THRESHOLD < 0)
+            {
+               System.err.println("Invalid parallelScanThreshold option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            continue;
+         }
+         if (args[i].equals("-metamorphCache"))
+         {
+            i++;
+            if (i >= args.length)
+            {
+               System.err.println("Invalid metamorphCache option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            try
+            {
+               World.METAMORPH_CACHE_CAPACITY = Integer.parseInt(args[i]);
+            }
+            catch (NumberFormatException e) {
+               System.err.println("Invalid metamorphCache option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            if (World.METAMORPH_CACHE_CAPACITY < 0)
+            {
+               System.err.println("Invalid metamorphCache option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            continue;
+         }
          if (args[i].equals("-numFlowers"))
          {
             i++;
@@ -750,6 +996,21 @@ public class Main
             printCollectedNectar = true;
             continue;
          }
+         if (args[i].equals("-offHeapMetamorphs"))
+         {
+            World.OFF_HEAP_METAMORPHS = true;
+            continue;
+         }
+         if (args[i].equals("-printMetamorphEvictions"))
+         {
+            printEvictions = true;
+            continue;
+         }
+         if (args[i].equals("-printMetamorphCacheStats"))
+         {
+            printCacheStats = true;
+            continue;
+         }
          if (args[i].equals("-load"))
          {
             i++;
@@ -894,6 +1155,116 @@ public class Main
             }
             continue;
          }
+         if (args[i].equals("-trainNNinterval"))
+         {
+            i++;
+            if (i >= args.length)
+            {
+               System.err.println("Invalid trainNNinterval option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            try
+            {
+               World.METAMORPH_NN_TRAINING_INTERVAL = Integer.parseInt(args[i]);
+            }
+            catch (NumberFormatException e) {
+               System.err.println("Invalid trainNNinterval option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            if (World.METAMORPH_NN_TRAINING_INTERVAL < 0)
+            {
+               System.err.println("Invalid trainNNinterval option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            continue;
+         }
+         if (args[i].equals("-trainNNonline"))
+         {
+            MetamorphNN.ONLINE_TRAINING = true;
+            continue;
+         }
+         if (args[i].equals("-trainNNdense"))
+         {
+            MetamorphNN.DENSE_TRAINING = true;
+            continue;
+         }
+         if (args[i].equals("-compactMetamorphs"))
+         {
+            i++;
+            if (i >= args.length)
+            {
+               System.err.println("Invalid compactMetamorphs option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            try
+            {
+               World.METAMORPH_COMPACTION_RADIUS = Float.parseFloat(args[i]);
+               if ((i < args.length - 1) && !args[i + 1].startsWith("-"))
+               {
+                  i++;
+                  World.METAMORPH_COMPACTION_INTERVAL = Integer.parseInt(args[i]);
+               }
+            }
+            catch (NumberFormatException e) {
+               System.err.println("Invalid compactMetamorphs option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            if ((World.METAMORPH_COMPACTION_RADIUS < 0.0f) || (World.METAMORPH_COMPACTION_INTERVAL < 0))
+            {
+               System.err.println("Invalid compactMetamorphs option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            compactMetamorphs = true;
+            continue;
+         }
+         if (args[i].equals("-openMetamorphDB"))
+         {
+            i++;
+            if (i >= args.length)
+            {
+               System.err.println("Invalid openMetamorphDB option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            if (metamorphDBopenfile == null)
+            {
+               metamorphDBopenfile = args[i];
+            }
+            else
+            {
+               System.err.println("Duplicate openMetamorphDB option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            continue;
+         }
+         if (args[i].equals("-writeMetamorphDB"))
+         {
+            i++;
+            if (i >= args.length)
+            {
+               System.err.println("Invalid writeMetamorphDB option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            if (metamorphDBwritefile == null)
+            {
+               metamorphDBwritefile = args[i];
+            }
+            else
+            {
+               System.err.println("Duplicate writeMetamorphDB option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            continue;
+         }
          if (args[i].equals("-help") || args[i].equals("-h") || args[i].equals("-?"))
          {
             System.out.println(Usage);
@@ -986,6 +1357,26 @@ public class Main
          }
       }
 
+      // Compact metamorphs?
+      if (compactMetamorphs)
+      {
+         world.compactMetamorphs(World.METAMORPH_COMPACTION_RADIUS);
+      }
+
+      // Open memory-mapped metamorph DB?
+      if (metamorphDBopenfile != null)
+      {
+         try
+         {
+            world.openMappedMetamorphs(metamorphDBopenfile);
+         }
+         catch (Exception e)
+         {
+            System.err.println("Cannot open metamorph DB file " + metamorphDBopenfile + ": " + e.getMessage());
+            System.exit(1);
+         }
+      }
+
       // Load metamorph neural network?
       if (NNloadfile != null)
       {
@@ -1004,6 +1395,21 @@ public class Main
       {
          System.out.println("Collected nectar = " + world.collectedNectar);
       }
+      if (printEvictions)
+      {
+         System.out.println("Metamorphs = " + world.metamorphs.size() + ", evicted = " +
+                            world.metamorphsEvicted + " in " + world.metamorphEvictions + " evictions");
+         if (compactMetamorphs)
+         {
+            System.out.println("Metamorphs compacted = " + world.metamorphsCompacted + " in " +
+                               world.metamorphCompactions + " compactions");
+         }
+      }
+      if (printCacheStats)
+      {
+         System.out.println("Metamorph cache hits = " + world.metamorphCacheHits + ", misses = " +
+                            world.metamorphCacheMisses);
+      }
 
       // Save?
       if (savefile != null)
@@ -1022,7 +1428,8 @@ public class Main
       // Save metamorph neural network?
       if (NNsavefile != null)
       {
-         if (world.metamorphNN == null)
+         world.finishMetamorphNNtraining();
+         if ((world.metamorphNN == null) || world.isMetamorphNNstale())
          {
             System.out.print("Training metamorph neural network...");
             world.trainMetamorphNN();
@@ -1044,6 +1451,20 @@ public class Main
             System.exit(1);
          }
       }
+
+      // Write metamorph DB?
+      if (metamorphDBwritefile != null)
+      {
+         try
+         {
+            world.writeMappedMetamorphs(metamorphDBwritefile);
+         }
+         catch (Exception e)
+         {
+            System.err.println("Cannot write metamorph DB to file " + metamorphDBwritefile + ": " + e.getMessage());
+            System.exit(1);
+         }
+      }
       System.exit(0);
    }
 }
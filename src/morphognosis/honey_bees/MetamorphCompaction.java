@@ -0,0 +1,280 @@
+// For conditions of distribution and use, see copyright notice in Main.java
+
+// Measure metamorph compaction: the size reduction and the change in foraging.
+// The metamorphs of a saved world are compacted at each radius, and the world
+// is then run with a metamorph DB driver from the same random seed. Collected
+// nectar is compared to the run without compaction.
+
+package morphognosis.honey_bees;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+
+public class MetamorphCompaction
+{
+   // Default radii.
+   public static final float[] DEFAULT_RADII = { 1.0f, 2.0f, 4.0f, 8.0f };
+
+   // Usage.
+   public static final String Usage =
+      "Usage:\n" +
+      "    java morphognosis.honey_bees.MetamorphCompaction\n" +
+      "      -load <world file name>\n" +
+      "      -steps <steps>\n" +
+      "     [-radii <radius>[,<radius>...] (default=1,2,4,8)]\n" +
+      "     [-driver <metamorphDB | metamorphGoalSeekingDB> (default=metamorphDB)]\n" +
+      "     [-randomSeed <random number seed> (default=" + Main.DEFAULT_RANDOM_SEED + ")]\n" +
+      "     [-save <compacted world file name> (save world compacted at the last radius)]\n" +
+      "Exit codes:\n" +
+      "  0=success\n" +
+      "  1=error";
+
+   // Main.
+   public static void main(String[] args)
+   {
+      String  loadfile   = null;
+      String  savefile   = null;
+      int     steps      = -1;
+      float[] radii      = DEFAULT_RADII;
+      int     driver     = Driver.METAMORPH_DB;
+      int     randomSeed = Main.DEFAULT_RANDOM_SEED;
+
+      for (int i = 0; i < args.length; i++)
+      {
+         if (args[i].equals("-load"))
+         {
+            i++;
+            if (i >= args.length)
+            {
+               System.err.println("Invalid load option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            loadfile = args[i];
+            continue;
+         }
+         if (args[i].equals("-save"))
+         {
+            i++;
+            if (i >= args.length)
+            {
+               System.err.println("Invalid save option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            savefile = args[i];
+            continue;
+         }
+         if (args[i].equals("-steps"))
+         {
+            i++;
+            if (i >= args.length)
+            {
+               System.err.println("Invalid steps option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            try
+            {
+               steps = Integer.parseInt(args[i]);
+            }
+            catch (NumberFormatException e) {
+               System.err.println("Invalid steps option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            if (steps < 0)
+            {
+               System.err.println("Invalid steps option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            continue;
+         }
+         if (args[i].equals("-radii"))
+         {
+            i++;
+            if (i >= args.length)
+            {
+               System.err.println("Invalid radii option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            String[] values = args[i].split(",");
+            radii = new float[values.length];
+            try
+            {
+               for (int j = 0; j < values.length; j++)
+               {
+                  radii[j] = Float.parseFloat(values[j].trim());
+               }
+            }
+            catch (NumberFormatException e) {
+               System.err.println("Invalid radii option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            for (float radius : radii)
+            {
+               if (radius < 0.0f)
+               {
+                  System.err.println("Invalid radii option");
+                  System.err.println(Usage);
+                  System.exit(1);
+               }
+            }
+            continue;
+         }
+         if (args[i].equals("-driver"))
+         {
+            i++;
+            if (i >= args.length)
+            {
+               System.err.println("Invalid driver option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            if (args[i].equals("metamorphDB"))
+            {
+               driver = Driver.METAMORPH_DB;
+            }
+            else if (args[i].equals("metamorphGoalSeekingDB"))
+            {
+               driver = Driver.METAMORPH_GOAL_SEEKING_DB;
+            }
+            else
+            {
+               System.err.println("Invalid driver option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            continue;
+         }
+         if (args[i].equals("-randomSeed"))
+         {
+            i++;
+            if (i >= args.length)
+            {
+               System.err.println("Invalid randomSeed option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            try
+            {
+               randomSeed = Integer.parseInt(args[i]);
+            }
+            catch (NumberFormatException e) {
+               System.err.println("Invalid randomSeed option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            continue;
+         }
+         if (args[i].equals("-help") || args[i].equals("-h") || args[i].equals("-?"))
+         {
+            System.out.println(Usage);
+            System.exit(0);
+         }
+         System.err.println("Invalid option: " + args[i]);
+         System.err.println(Usage);
+         System.exit(1);
+      }
+      if ((loadfile == null) || (steps == -1))
+      {
+         System.err.println(Usage);
+         System.exit(1);
+      }
+
+      // Run without compaction, then at each radius.
+      World world           = run(loadfile, -1.0f, driver, steps, randomSeed);
+      int   numMetamorphs   = world.metamorphs.size();
+      int   collectedNectar = world.collectedNectar;
+      System.out.println("Metamorphs=" + numMetamorphs + ", steps=" + steps + ", driver=" +
+                         (driver == Driver.METAMORPH_DB ? "metamorphDB" : "metamorphGoalSeekingDB") +
+                         ", random seed=" + randomSeed);
+      System.out.println("Radius\tMetamorphs\tReduction (%)\tCollected nectar\tChange (%)");
+      System.out.println("none\t" + numMetamorphs + "\t0.0\t" + collectedNectar + "\t0.0");
+      for (float radius : radii)
+      {
+         world = run(loadfile, radius, driver, steps, randomSeed);
+         int n = world.metamorphs.size() + (int)world.metamorphsCompacted;
+         System.out.println(radius + "\t" + (n - (int)world.metamorphsCompacted) + "\t" +
+                            percent(world.metamorphsCompacted, n) + "\t" + world.collectedNectar + "\t" +
+                            percent(world.collectedNectar - collectedNectar, collectedNectar));
+      }
+
+      // Save compacted world?
+      if ((savefile != null) && (radii.length > 0))
+      {
+         world = load(loadfile, randomSeed);
+         world.compactMetamorphs(radii[radii.length - 1]);
+         Main.world = world;
+         try
+         {
+            Main.save(savefile);
+         }
+         catch (Exception e)
+         {
+            System.err.println("Cannot save to file " + savefile + ": " + e.getMessage());
+            System.exit(1);
+         }
+      }
+      System.exit(0);
+   }
+
+
+   // Load world, compact metamorphs if radius is not negative, and run.
+   // The compacted metamorphs are counted before the run, which adds none
+   // since metamorph DB drivers do not learn.
+   private static World run(String loadfile, float radius, int driver, int steps, int randomSeed)
+   {
+      World world = load(loadfile, randomSeed);
+
+      if (radius >= 0.0f)
+      {
+         world.compactMetamorphs(radius);
+      }
+      world.setDriver(driver);
+      world.collectedNectar = 0;
+      for (int i = 0; i < steps; i++)
+      {
+         world.step();
+      }
+      return(world);
+   }
+
+
+   // Load world.
+   private static World load(String loadfile, int randomSeed)
+   {
+      World world = null;
+
+      try
+      {
+         DataInputStream reader = new DataInputStream(new BufferedInputStream(new FileInputStream(new File(loadfile))));
+         Parameters.load(reader);
+         world = new World(randomSeed);
+         world.load(reader);
+         reader.close();
+      }
+      catch (Exception e)
+      {
+         System.err.println("Cannot load from file " + loadfile + ": " + e.getMessage());
+         System.exit(1);
+      }
+      return(world);
+   }
+
+
+   // Percentage.
+   private static String percent(long value, long total)
+   {
+      if (total == 0)
+      {
+         return("0.0");
+      }
+      return(String.format("%.1f", 100.0 * (double)value / (double)total));
+   }
+}
@@ -0,0 +1,230 @@
+// For conditions of distribution and use, see copyright notice in Main.java
+
+// Measure approximate metamorph index recall and latency against the linear scan.
+// The metamorphs of a saved world are indexed except for the last ones, whose
+// morphognostics are the queries. A query is recalled if the index finds a
+// metamorph at the minimum distance found by the linear scan.
+
+package morphognosis.honey_bees;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.util.List;
+
+import morphognosis.LSHMetamorphIndex;
+import morphognosis.Metamorph;
+import morphognosis.MetamorphIndex;
+import morphognosis.Morphognostic;
+import morphognosis.PartitionedMetamorphIndex;
+
+public class MetamorphIndexRecall
+{
+   // Default number of queries.
+   public static final int DEFAULT_NUM_QUERIES = 1000;
+
+   // Usage.
+   public static final String Usage =
+      "Usage:\n" +
+      "    java morphognosis.honey_bees.MetamorphIndexRecall\n" +
+      "      -load <world file name>\n" +
+      "     [-metamorphIndex <linear | vptree | lsh | partitioned> (default=lsh)]\n" +
+      "     [-lsh <tables> <bits> <probes> (default=" + LSHMetamorphIndex.TABLES + " " +
+      LSHMetamorphIndex.TABLE_BITS + " " + LSHMetamorphIndex.PROBES + ")]\n" +
+      "     [-queries <number of queries> (default=" + DEFAULT_NUM_QUERIES + ")]\n" +
+      "Exit codes:\n" +
+      "  0=success\n" +
+      "  1=error";
+
+   // Main.
+   public static void main(String[] args)
+   {
+      String loadfile   = null;
+      int    indexType  = MetamorphIndex.LSH;
+      int    numQueries = DEFAULT_NUM_QUERIES;
+
+      for (int i = 0; i < args.length; i++)
+      {
+         if (args[i].equals("-load"))
+         {
+            i++;
+            if (i >= args.length)
+            {
+               System.err.println("Invalid load option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            loadfile = args[i];
+            continue;
+         }
+         if (args[i].equals("-metamorphIndex"))
+         {
+            i++;
+            if ((i >= args.length) || (MetamorphIndex.fromName(args[i]) == -1))
+            {
+               System.err.println("Invalid metamorphIndex option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            indexType = MetamorphIndex.fromName(args[i]);
+            continue;
+         }
+         if (args[i].equals("-lsh"))
+         {
+            if (i + 3 >= args.length)
+            {
+               System.err.println("Invalid lsh option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            try
+            {
+               LSHMetamorphIndex.TABLES     = Integer.parseInt(args[++i]);
+               LSHMetamorphIndex.TABLE_BITS = Integer.parseInt(args[++i]);
+               LSHMetamorphIndex.PROBES     = Integer.parseInt(args[++i]);
+            }
+            catch (NumberFormatException e) {
+               System.err.println("Invalid lsh option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            if ((LSHMetamorphIndex.TABLES <= 0) || (LSHMetamorphIndex.TABLE_BITS <= 0) ||
+                (LSHMetamorphIndex.TABLE_BITS > 64) || (LSHMetamorphIndex.PROBES < 0))
+            {
+               System.err.println("Invalid lsh option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            continue;
+         }
+         if (args[i].equals("-queries"))
+         {
+            i++;
+            if (i >= args.length)
+            {
+               System.err.println("Invalid queries option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            try
+            {
+               numQueries = Integer.parseInt(args[i]);
+            }
+            catch (NumberFormatException e) {
+               System.err.println("Invalid queries option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            if (numQueries <= 0)
+            {
+               System.err.println("Invalid queries option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            continue;
+         }
+         if (args[i].equals("-help") || args[i].equals("-h") || args[i].equals("-?"))
+         {
+            System.out.println(Usage);
+            System.exit(0);
+         }
+         System.err.println("Invalid option: " + args[i]);
+         System.err.println(Usage);
+         System.exit(1);
+      }
+      if (loadfile == null)
+      {
+         System.err.println(Usage);
+         System.exit(1);
+      }
+
+      // Load world.
+      World world = null;
+      try
+      {
+         DataInputStream reader = new DataInputStream(new BufferedInputStream(new FileInputStream(new File(loadfile))));
+         Parameters.load(reader);
+         world = new World(Main.DEFAULT_RANDOM_SEED);
+         world.load(reader);
+         reader.close();
+      }
+      catch (Exception e)
+      {
+         System.err.println("Cannot load from file " + loadfile + ": " + e.getMessage());
+         System.exit(1);
+      }
+      int numMetamorphs = world.metamorphs.size();
+      if (numQueries >= numMetamorphs)
+      {
+         numQueries = numMetamorphs / 2;
+      }
+      if (numQueries == 0)
+      {
+         System.err.println("Too few metamorphs in file " + loadfile);
+         System.exit(1);
+      }
+
+      // Index all but the query metamorphs.
+      List<Metamorph> indexed = world.metamorphs.subList(0, numMetamorphs - numQueries);
+      MetamorphIndex  linear  = MetamorphIndex.create(MetamorphIndex.LINEAR);
+      MetamorphIndex  index   = World.createMetamorphIndex(indexType);
+      linear.sync(indexed);
+      long time = System.nanoTime();
+      index.sync(indexed);
+      time = System.nanoTime() - time;
+
+      // Query.
+      MetamorphIndex.SearchResult exact       = new MetamorphIndex.SearchResult();
+      MetamorphIndex.SearchResult approximate = new MetamorphIndex.SearchResult();
+      int    recalled    = 0;
+      double distanceSum = 0.0;
+      long   linearTime  = 0;
+      long   indexTime   = 0;
+      long   candidates  = 0;
+      for (int i = numMetamorphs - numQueries; i < numMetamorphs; i++)
+      {
+         Morphognostic query = world.metamorphs.get(i).getMorphognostic();
+         query.getDensityVector();
+         long t = System.nanoTime();
+         linear.search(query, exact);
+         linearTime += System.nanoTime() - t;
+         t           = System.nanoTime();
+         index.search(query, approximate);
+         indexTime  += System.nanoTime() - t;
+         if (indexType == MetamorphIndex.LSH)
+         {
+            candidates += ((LSHMetamorphIndex)index).numCandidates;
+         }
+         if (indexType == MetamorphIndex.PARTITIONED)
+         {
+            candidates += ((PartitionedMetamorphIndex)index).numCandidates;
+         }
+         float d  = exact.distances[exact.size - 1];
+         float d2 = approximate.distances[approximate.size - 1];
+         if (d2 == d)
+         {
+            recalled++;
+         }
+         distanceSum += d2 - d;
+      }
+      System.out.println("Metamorphs indexed=" + indexed.size() + ", queries=" + numQueries);
+      System.out.print("Index=" + MetamorphIndex.toName(indexType));
+      if (indexType == MetamorphIndex.LSH)
+      {
+         System.out.print(", tables=" + LSHMetamorphIndex.TABLES + ", bits=" +
+                          LSHMetamorphIndex.TABLE_BITS + ", probes=" + LSHMetamorphIndex.PROBES);
+      }
+      System.out.println();
+      if ((indexType == MetamorphIndex.LSH) || (indexType == MetamorphIndex.PARTITIONED))
+      {
+         System.out.println("Mean candidates=" + ((double)candidates / numQueries));
+      }
+      System.out.println("Build time (ms)=" + (time / 1000000.0));
+      System.out.println("Recall=" + ((float)recalled / (float)numQueries));
+      System.out.println("Mean excess distance=" + (distanceSum / numQueries));
+      System.out.println("Mean linear search time (us)=" + (linearTime / 1000.0 / numQueries));
+      System.out.println("Mean index search time (us)=" + (indexTime / 1000.0 / numQueries));
+      System.exit(0);
+   }
+}
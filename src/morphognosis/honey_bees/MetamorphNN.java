@@ -4,12 +4,21 @@
 
 package morphognosis.honey_bees;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.util.ArrayList;
 import java.util.Random;
 
+import morphognosis.IndexList;
 import morphognosis.Metamorph;
 import morphognosis.Morphognostic;
+import morphognosis.Utility;
+import weka.classifiers.AbstractClassifier;
 import weka.classifiers.evaluation.Evaluation;
 import weka.classifiers.functions.MultilayerPerceptron;
 import weka.classifiers.misc.SerializedClassifier;
@@ -21,79 +30,95 @@ import weka.core.Instances;
 
 public class MetamorphNN
 {
-   // Neural network model.
+   // Neural network model, null for a network trained on a dense matrix,
+   // which has only its inference engine.
    public MultilayerPerceptron mlp;
    public int numAttributes;
 
-   // Random numbers.
+   // Inference engine extracted from the model, null if not extracted,
+   // and whether to extract it; otherwise Weka classifies.
+   public MetamorphNNInference inference;
+   public static boolean       NATIVE_INFERENCE = true;
+
+   // Evaluation of the model on its training metamorphs, null if not evaluated.
+   // It is kept rather than printed, since training may run in the background.
+   public String evaluation;
+
+   // Online training: the model is updated with new samples in mini-batches
+   // for a number of epochs, each new sample in a batch accompanied by samples
+   // replayed from a buffer holding a uniform sample of the samples trained on.
+   public static boolean ONLINE_TRAINING     = false;
+   public static int     ONLINE_EPOCHS       = 20;
+   public static int     ONLINE_BATCH_SIZE   = 16;
+   public static int     ONLINE_REPLAY_RATIO = 1;
+   public static int     REPLAY_CAPACITY     = 4096;
+   public ArrayList<float[]> replayDensities;
+   public IndexList          replayResponses;
+   public long               replaySamples;
+
+   // Dense training: the density vectors of the metamorphs are copied into a
+   // contiguous matrix, one row per metamorph, and a network is trained on it
+   // in mini-batches by the in-house learner, without Weka. The network is laid
+   // out and normalized as a Weka perceptron is, and its random numbers order
+   // the metamorphs and initialize the weights in the order Weka draws them.
+   // A batch size of 1 updates the weights after each metamorph as Weka does,
+   // training the Weka network (see MetamorphNNDenseCheck).
+   public static boolean DENSE_TRAINING    = false;
+   public static int     DENSE_BATCH_SIZE  = 1;
+   public static int     DENSE_RANDOM_SEED = 0;
+
+   // Random numbers, and for learning.
    public Random random;
+   public Random learningRandom;
 
    // Constructor.
    public MetamorphNN(Random random)
    {
-      this.random   = random;
-      numAttributes = -1;
+      this.random     = random;
+      learningRandom  = random;
+      numAttributes   = -1;
+      replayDensities = new ArrayList<float[]>();
+      replayResponses = new IndexList();
    }
 
 
    // Train metamorphs.
    public void train(ArrayList<Metamorph> metamorphs)
    {
-      mlp = null;
+      mlp        = null;
+      inference  = null;
+      evaluation = null;
       if (metamorphs.size() == 0) { return; }
 
-      // Create metamorph training dataset.
-      Morphognostic morphognostic = metamorphs.get(0).morphognostic;
+      Morphognostic morphognostic = metamorphs.get(0).getMorphognostic();
       if (numAttributes == -1)
       {
          setNumAttributes(morphognostic);
       }
-      ArrayList<Attribute> attributeNames = new ArrayList<Attribute>();
-      for (int i = 0; i < morphognostic.NUM_NEIGHBORHOODS; i++)
-      {
-         Morphognostic.Neighborhood neighborhood = morphognostic.neighborhoods.get(i);
-         int n = neighborhood.sectors.length;
-         for (int x = 0; x < n; x++)
-         {
-            for (int y = 0; y < n; y++)
-            {
-               for (int d = 0; d < morphognostic.eventDimensions; d++)
-               {
-                  if (neighborhood.eventDimensionMap[d])
-                  {
-                     for (int j = 0; j < morphognostic.eventValueDimensions[d]; j++)
-                     {
-                        attributeNames.add(new Attribute(i + "-" + x + "-" + y + "-" + d + "-" + j));
-                     }
-                  }
-               }
-            }
-         }
-      }
-      ArrayList<String> responseVals = new ArrayList<String>();
-      for (int i = 0; i < HoneyBee.NUM_RESPONSES; i++)
+      if (DENSE_TRAINING && trainDense(metamorphs))
       {
-         responseVals.add(i + "");
+         return;
       }
-      attributeNames.add(new Attribute("response", responseVals));
-      Instances metamorphInstances = new Instances("metamorphs", attributeNames, 0);
+
+      // Create metamorph training dataset.
+      Instances metamorphInstances = createDataset(morphognostic);
       for (Metamorph metamorph : metamorphs)
       {
-         metamorphInstances.add(createInstance(metamorph.morphognostic, metamorph.response));
+         metamorphInstances.add(createInstance(metamorph.getDensityVector(), metamorph.response));
       }
-      metamorphInstances.setClassIndex(numAttributes - 1);
 
       // Create model.
-      mlp = new MultilayerPerceptron();
-      mlp.setLearningRate(Parameters.NN_LEARNING_RATE);
-      mlp.setMomentum(Parameters.NN_MOMENTUM);
-      mlp.setHiddenLayers(Parameters.NN_HIDDEN_LAYERS);
-      mlp.setTrainingTime(Parameters.NN_TRAINING_TIME);
+      mlp = createModel();
 
       // Train model.
       try
       {
          mlp.buildClassifier(metamorphInstances);
+         extractInference();
+         if (ONLINE_TRAINING)
+         {
+            fillReplay(metamorphs);
+         }
       }
       catch (Exception e)
       {
@@ -106,8 +131,7 @@ public class MetamorphNN
       {
          Evaluation eval = new Evaluation(metamorphInstances);
          eval.evaluateModel(mlp, metamorphInstances);
-         System.out.println("Error rate=" + eval.errorRate());
-         System.out.println(eval.toSummaryString());
+         evaluation = "Error rate=" + eval.errorRate() + "\n" + eval.toSummaryString();
       }
       catch (Exception e)
       {
@@ -117,70 +141,433 @@ public class MetamorphNN
    }
 
 
-   // Create instance.
-   public Instance createInstance(Morphognostic morphognostic, int response)
+   // Train metamorphs on a dense matrix of their density vectors.
+   // Returns false if the model cannot be trained this way.
+   public boolean trainDense(ArrayList<Metamorph> metamorphs)
    {
-      if (numAttributes == -1)
+      int rows    = metamorphs.size();
+      int columns = numAttributes - 1;
+
+      if (!NATIVE_INFERENCE || ((long)rows * (long)columns > (long)Integer.MAX_VALUE))
       {
-         setNumAttributes(morphognostic);
+         return(false);
+      }
+
+      // Create matrix.
+      float[] matrix    = new float[rows * columns];
+      int[]   responses = new int[rows];
+      float[] minimums  = new float[columns];
+      float[] maximums  = new float[columns];
+      for (int i = 0; i < rows; i++)
+      {
+         Metamorph metamorph = metamorphs.get(i);
+         float[]   densities = metamorph.getDensityVector();
+         System.arraycopy(densities, 0, matrix, i * columns, columns);
+         responses[i] = metamorph.response;
+         for (int j = 0; j < columns; j++)
+         {
+            if ((i == 0) || (densities[j] < minimums[j]))
+            {
+               minimums[j] = densities[j];
+            }
+            if ((i == 0) || (densities[j] > maximums[j]))
+            {
+               maximums[j] = densities[j];
+            }
+         }
+      }
+
+      // Create network, normalizing inputs to [-1,1] as Weka does.
+      int[]    inputIndexes = new int[columns];
+      double[] inputBases   = new double[columns];
+      double[] inputRanges  = new double[columns];
+      for (int i = 0; i < columns; i++)
+      {
+         inputIndexes[i] = i;
+         inputBases[i]   = ((double)maximums[i] + (double)minimums[i]) / 2.0;
+         inputRanges[i]  = ((double)maximums[i] - (double)minimums[i]) / 2.0;
+      }
+      int[]      layerSizes   = getLayerSizes(columns, HoneyBee.NUM_RESPONSES);
+      double[][] layerWeights = new double[layerSizes.length][];
+      for (int i = 1; i < layerSizes.length; i++)
+      {
+         layerWeights[i] = new double[layerSizes[i] * (layerSizes[i - 1] + 1)];
+      }
+      inference = new MetamorphNNInference(inputIndexes, true, inputBases, inputRanges, layerSizes, layerWeights);
+
+      // Order the metamorphs and initialize the weights as Weka does: its random
+      // numbers shuffle the instances once, and then initialize the weights.
+      Random weightRandom = new Random(DENSE_RANDOM_SEED);
+      int[]  order        = new int[rows];
+      for (int i = 0; i < rows; i++)
+      {
+         order[i] = i;
+      }
+      for (int i = rows - 1; i > 0; i--)
+      {
+         int j = weightRandom.nextInt(i + 1);
+         int k = order[i];
+         order[i] = order[j];
+         order[j] = k;
+      }
+      initializeWeights(inference, weightRandom);
+
+      // Train, in the same order every epoch.
+      MetamorphNNLearner learner = new MetamorphNNLearner(inference, Parameters.NN_LEARNING_RATE, Parameters.NN_MOMENTUM);
+      int batchSize = Math.max(DENSE_BATCH_SIZE, 1);
+      for (int epoch = 0; epoch < Parameters.NN_TRAINING_TIME; epoch++)
+      {
+         for (int i = 0; i < rows; i += batchSize)
+         {
+            learner.train(matrix, columns, order, i, Math.min(batchSize, rows - i), responses);
+         }
+      }
+      if (ONLINE_TRAINING)
+      {
+         fillReplay(metamorphs);
+      }
+
+      // Evaluate model.
+      int errors = 0;
+      for (int i = 0; i < rows; i++)
+      {
+         order[i] = i;
+      }
+      for (int i = 0; i < rows; i += 256)
+      {
+         int      count         = Math.min(256, rows - i);
+         double[] probabilities = inference.getProbabilities(matrix, columns, order, i, count);
+         int      numResponses  = inference.layerSizes[inference.numLayers - 1];
+         for (int j = 0; j < count; j++)
+         {
+            if (MetamorphNNInference.getResponse(probabilities, j * numResponses, numResponses) != responses[i + j])
+            {
+               errors++;
+            }
+         }
       }
-      double[]  attrValues = new double[numAttributes];
-      int a = 0;
-      for (int i = 0; i < morphognostic.NUM_NEIGHBORHOODS; i++)
+      evaluation = "Error rate=" + ((double)errors / (double)rows);
+      return(true);
+   }
+
+
+   // Initialize weights in the order Weka draws them as it builds the network.
+   // Each unit draws its threshold when created, and a weight for each input
+   // as it is connected: the output units are created first, then the hidden
+   // layers in turn, each unit connected to the previous hidden layer as it
+   // is created; the inputs are then connected to the first hidden layer,
+   // input by input, and the last hidden layer to the output units.
+   public static void initializeWeights(MetamorphNNInference inference, Random random)
+   {
+      int        numLayers = inference.numLayers;
+      int[]      sizes     = inference.layerSizes;
+      double[][] weights   = inference.layerWeights;
+      int        output    = numLayers - 1;
+
+      for (int i = 0; i < sizes[output]; i++)
+      {
+         weights[output][i * (sizes[output - 1] + 1)] = initialWeight(random);
+      }
+      for (int i = 1; i < output; i++)
       {
-         Morphognostic.Neighborhood neighborhood = morphognostic.neighborhoods.get(i);
-         int n = neighborhood.sectors.length;
-         for (int x = 0; x < n; x++)
+         int n = sizes[i - 1] + 1;
+         for (int j = 0; j < sizes[i]; j++)
          {
-            for (int y = 0; y < n; y++)
+            weights[i][j * n] = initialWeight(random);
+            if (i > 1)
             {
-               Morphognostic.Neighborhood.Sector s = neighborhood.sectors[x][y];
-               for (int d = 0; d < morphognostic.eventDimensions; d++)
+               for (int k = 0; k < sizes[i - 1]; k++)
                {
-                  if (neighborhood.eventDimensionMap[d])
-                  {
-                     for (int j = 0; j < s.valueDensities[d].length; j++)
-                     {
-                        attrValues[a] = s.valueDensities[d][j];
-                        a++;
-                     }
-                  }
+                  weights[i][j * n + 1 + k] = initialWeight(random);
                }
             }
          }
       }
-      attrValues[a] = (double)response;
-      a++;
-      return(new DenseInstance(1.0, attrValues));
+      for (int i = 0; i < sizes[0]; i++)
+      {
+         for (int j = 0, n = sizes[0] + 1; j < sizes[1]; j++)
+         {
+            weights[1][j * n + 1 + i] = initialWeight(random);
+         }
+      }
+      if (output > 1)
+      {
+         for (int i = 0, n = sizes[output - 1] + 1; i < sizes[output - 1]; i++)
+         {
+            for (int j = 0; j < sizes[output]; j++)
+            {
+               weights[output][j * n + 1 + i] = initialWeight(random);
+            }
+         }
+      }
    }
 
 
-   // Set number of attributes.
-   public void setNumAttributes(Morphognostic morphognostic)
+   private static double initialWeight(Random random)
+   {
+      return(random.nextDouble() * 0.1 - 0.05);
+   }
+
+
+   // Print evaluation.
+   public void printEvaluation()
+   {
+      if (evaluation != null)
+      {
+         System.out.println(evaluation);
+      }
+   }
+
+
+   // Get layer sizes of a network for a number of inputs and responses,
+   // with hidden layers specified as for Weka: a comma-separated list of sizes,
+   // or the wildcards 'a' = (inputs + responses) / 2, 'i' = inputs,
+   // 'o' = responses and 't' = inputs + responses. Empty layers are omitted.
+   public static int[] getLayerSizes(int numInputs, int numResponses)
    {
-      numAttributes = 0;
-      for (int i = 0; i < morphognostic.NUM_NEIGHBORHOODS; i++)
+      ArrayList<Integer> sizes = new ArrayList<Integer>();
+
+      sizes.add(numInputs);
+      for (String layer : Parameters.NN_HIDDEN_LAYERS.split(","))
       {
-         Morphognostic.Neighborhood neighborhood = morphognostic.neighborhoods.get(i);
-         int n = neighborhood.sectors.length;
-         for (int x = 0; x < n; x++)
+         layer = layer.trim();
+         int size;
+         if (layer.equals("a"))
+         {
+            size = (numInputs + numResponses) / 2;
+         }
+         else if (layer.equals("i"))
+         {
+            size = numInputs;
+         }
+         else if (layer.equals("o"))
+         {
+            size = numResponses;
+         }
+         else if (layer.equals("t"))
          {
-            for (int y = 0; y < n; y++)
+            size = numInputs + numResponses;
+         }
+         else
+         {
+            size = Double.valueOf(layer).intValue();
+         }
+         if (size > 0)
+         {
+            sizes.add(size);
+         }
+      }
+      sizes.add(numResponses);
+      int[] layerSizes = new int[sizes.size()];
+      for (int i = 0; i < layerSizes.length; i++)
+      {
+         layerSizes[i] = sizes.get(i);
+      }
+      return(layerSizes);
+   }
+
+
+   // Create empty dataset of density vectors and responses.
+   public Instances createDataset(Morphognostic morphognostic)
+   {
+      ArrayList<Attribute> attributeNames = new ArrayList<Attribute>();
+      for (String label : morphognostic.getDensityVectorLabels())
+      {
+         attributeNames.add(new Attribute(label));
+      }
+      ArrayList<String> responseVals = new ArrayList<String>();
+      for (int i = 0; i < HoneyBee.NUM_RESPONSES; i++)
+      {
+         responseVals.add(i + "");
+      }
+      attributeNames.add(new Attribute("response", responseVals));
+      Instances dataset = new Instances("metamorphs", attributeNames, 0);
+      dataset.setClassIndex(numAttributes - 1);
+      return(dataset);
+   }
+
+
+   // Create model.
+   public MultilayerPerceptron createModel()
+   {
+      MultilayerPerceptron model = new MultilayerPerceptron();
+
+      model.setLearningRate(Parameters.NN_LEARNING_RATE);
+      model.setMomentum(Parameters.NN_MOMENTUM);
+      model.setHiddenLayers(Parameters.NN_HIDDEN_LAYERS);
+      model.setTrainingTime(Parameters.NN_TRAINING_TIME);
+      return(model);
+   }
+
+
+   // Fill replay buffer with metamorphs.
+   public void fillReplay(ArrayList<Metamorph> metamorphs)
+   {
+      replayDensities.clear();
+      replayResponses.clear();
+      replaySamples = 0;
+      for (Metamorph metamorph : metamorphs)
+      {
+         replay(metamorph.getDensityVector(), metamorph.response);
+      }
+   }
+
+
+   // Extract inference engine from model.
+   public void extractInference()
+   {
+      inference = null;
+      if (NATIVE_INFERENCE && (mlp != null))
+      {
+         inference = MetamorphNNInference.extract(mlp);
+      }
+   }
+
+
+   // Copy, sharing no model or buffer state.
+   // Returns null if the model cannot be copied.
+   public MetamorphNN copy()
+   {
+      MetamorphNN nn = new MetamorphNN(random);
+
+      if ((mlp == null) && (inference != null))
+      {
+         nn.inference = inference.copy();
+      }
+      else
+      {
+         try
+         {
+            nn.mlp = (MultilayerPerceptron)AbstractClassifier.makeCopy(mlp);
+         }
+         catch (Exception e)
+         {
+            System.err.println("Cannot copy metamorph neural network: " + e.getMessage());
+            return(null);
+         }
+         nn.extractInference();
+      }
+      nn.numAttributes = numAttributes;
+      nn.replayDensities.addAll(replayDensities);
+      for (int i = 0, j = replayResponses.size(); i < j; i++)
+      {
+         nn.replayResponses.add(replayResponses.get(i));
+      }
+      nn.replaySamples = replaySamples;
+      return(nn);
+   }
+
+
+   // Model can be updated online?
+   public boolean isUpdatable()
+   {
+      return((inference != null) && ((mlp == null) || (inference.layerUnits != null)));
+   }
+
+
+   // Update model online with new samples of density vectors and responses,
+   // at a cost proportional to the number of new samples.
+   // The density vectors must not be modified afterwards: they are kept for replay.
+   public void update(float[][] densities, int[] responses, int count)
+   {
+      if (!isUpdatable() || (count == 0))
+      {
+         return;
+      }
+      MetamorphNNLearner learner = new MetamorphNNLearner(inference, Parameters.NN_LEARNING_RATE, Parameters.NN_MOMENTUM);
+      int       replays          = (replayDensities.size() > 0 ? ONLINE_REPLAY_RATIO : 0);
+      int       batchSize        = Math.max(ONLINE_BATCH_SIZE, 1);
+      float[][] batchDensities   = new float[batchSize * (1 + replays)][];
+      int[]     batchResponses   = new int[batchSize * (1 + replays)];
+      int[]     order            = new int[count];
+      for (int i = 0; i < count; i++)
+      {
+         order[i] = i;
+      }
+      for (int epoch = 0; epoch < ONLINE_EPOCHS; epoch++)
+      {
+         for (int i = count - 1; i > 0; i--)
+         {
+            int j = learningRandom.nextInt(i + 1);
+            int k = order[i];
+            order[i] = order[j];
+            order[j] = k;
+         }
+         for (int i = 0; i < count; i += batchSize)
+         {
+            int n = 0;
+            for (int j = i, k = Math.min(i + batchSize, count); j < k; j++)
             {
-               Morphognostic.Neighborhood.Sector s = neighborhood.sectors[x][y];
-               for (int d = 0; d < morphognostic.eventDimensions; d++)
+               batchDensities[n]   = densities[order[j]];
+               batchResponses[n++] = responses[order[j]];
+               for (int r = 0; r < replays; r++)
                {
-                  if (neighborhood.eventDimensionMap[d])
-                  {
-                     for (int j = 0; j < s.valueDensities[d].length; j++)
-                     {
-                        numAttributes++;
-                     }
-                  }
+                  int s = learningRandom.nextInt(replayDensities.size());
+                  batchDensities[n]   = replayDensities.get(s);
+                  batchResponses[n++] = replayResponses.get(s);
                }
             }
+            learner.train(batchDensities, batchResponses, n);
+         }
+      }
+      inference.storeWeights();
+      for (int i = 0; i < count; i++)
+      {
+         replay(densities[i], responses[i]);
+      }
+   }
+
+
+   // Offer sample to replay buffer, keeping a uniform sample of those offered.
+   public void replay(float[] densities, int response)
+   {
+      replaySamples++;
+      if (replayDensities.size() < REPLAY_CAPACITY)
+      {
+         replayDensities.add(densities);
+         replayResponses.add(response);
+      }
+      else
+      {
+         long i = (long)(learningRandom.nextDouble() * (double)replaySamples);
+         if (i < REPLAY_CAPACITY)
+         {
+            replayDensities.set((int)i, densities);
+            replayResponses.set((int)i, response);
          }
       }
+   }
+
+
+   // Create instance.
+   public Instance createInstance(Morphognostic morphognostic, int response)
+   {
+      if (numAttributes == -1)
+      {
+         setNumAttributes(morphognostic);
+      }
+      return(createInstance(morphognostic.getDensityVector(), response));
+   }
+
+
+   public Instance createInstance(float[] densities, int response)
+   {
+      double[] attrValues = new double[numAttributes];
+      int      a          = 0;
+      for ( ; a < densities.length; a++)
+      {
+         attrValues[a] = densities[a];
+      }
+      attrValues[a] = (double)response;
+      a++;
+      return(new DenseInstance(1.0, attrValues));
+   }
+
+
+   // Set number of attributes.
+   public void setNumAttributes(Morphognostic morphognostic)
+   {
+      numAttributes = morphognostic.getDensityVector().length;
       numAttributes++;
    }
 
@@ -194,11 +581,28 @@ public class MetamorphNN
 
    public int respond(Morphognostic morphognostic, boolean probabilistic)
    {
-      if (mlp == null)
+      if ((mlp == null) && (inference == null))
       {
          System.err.println("Warning: cannot get metamorph neural network response: model is null");
          return(HoneyBee.WAIT);
       }
+      if (inference != null)
+      {
+         double[] probabilities = inference.getProbabilities(morphognostic.getDensityVector());
+         if (probabilities != null)
+         {
+            if (probabilistic)
+            {
+               return(respondProbabilistic(probabilities));
+            }
+            return(MetamorphNNInference.getResponse(probabilities));
+         }
+         if (mlp == null)
+         {
+            // No Weka default model for a null distribution.
+            return(HoneyBee.WAIT);
+         }
+      }
       Instance morphognosticInstance = createInstance(morphognostic, 0);
       int      response = HoneyBee.WAIT;
 
@@ -222,6 +626,38 @@ public class MetamorphNN
    }
 
 
+   // Respond to a batch of morphognostics in one pass of the inference engine.
+   public void respond(Morphognostic[] morphognostics, int count, int[] responses)
+   {
+      if (inference == null)
+      {
+         for (int i = 0; i < count; i++)
+         {
+            responses[i] = respond(morphognostics[i]);
+         }
+         return;
+      }
+      float[][] densities = new float[count][];
+      for (int i = 0; i < count; i++)
+      {
+         densities[i] = morphognostics[i].getDensityVector();
+      }
+      double[] probabilities = inference.getProbabilities(densities, count);
+      int      numResponses  = inference.layerSizes[inference.numLayers - 1];
+      for (int i = 0; i < count; i++)
+      {
+         if (Double.isNaN(probabilities[i * numResponses]))
+         {
+            responses[i] = respond(morphognostics[i]);
+         }
+         else
+         {
+            responses[i] = MetamorphNNInference.getResponse(probabilities, i * numResponses, numResponses);
+         }
+      }
+   }
+
+
    // Respond probabilistically.
    public int respondProbabilistic(double[] probabilities)
    {
@@ -240,7 +676,7 @@ public class MetamorphNN
    }
 
 
-   // Save model to file.
+   // Save model to file: a Weka model, or the inference engine of a dense model.
    public boolean saveModel(String filename)
    {
       if (mlp != null)
@@ -255,6 +691,20 @@ public class MetamorphNN
             return(false);
          }
       }
+      else if (inference != null)
+      {
+         try
+         {
+            DataOutputStream writer = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(new File(filename))));
+            inference.save(writer);
+            writer.close();
+         }
+         catch (Exception e)
+         {
+            System.err.println("Cannot save metamorph neural network to file " + filename + ": " + e.getMessage());
+            return(false);
+         }
+      }
       else
       {
          System.err.println("Cannot save null metamorph neural network to file " + filename);
@@ -264,15 +714,27 @@ public class MetamorphNN
    }
 
 
-   // Load model from file.
+   // Load model from file, in either format.
    public boolean loadModel(String filename)
    {
-      mlp = null;
+      mlp       = null;
+      inference = null;
       try
       {
-         SerializedClassifier classifier = new SerializedClassifier();
-         classifier.setModelFile(new File(filename));
-         mlp = (MultilayerPerceptron)classifier.getCurrentModel();
+         DataInputStream reader = new DataInputStream(new BufferedInputStream(new FileInputStream(new File(filename))));
+         boolean         dense  = (Utility.loadInt(reader) == MetamorphNNInference.FILE_FORMAT);
+         if (dense)
+         {
+            inference = MetamorphNNInference.load(reader);
+         }
+         reader.close();
+         if (!dense)
+         {
+            SerializedClassifier classifier = new SerializedClassifier();
+            classifier.setModelFile(new File(filename));
+            mlp = (MultilayerPerceptron)classifier.getCurrentModel();
+            extractInference();
+         }
       }
       catch (Exception e)
       {
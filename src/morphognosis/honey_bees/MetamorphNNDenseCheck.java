@@ -0,0 +1,252 @@
+// For conditions of distribution and use, see copyright notice in Main.java
+
+// Check dense metamorph neural network training against Weka.
+// The metamorphs of a saved world are trained by the Weka perceptron and by the
+// dense learner, updating after each metamorph, with the world's network parameters.
+// The weights of the networks are compared, and their responses to the metamorphs.
+
+package morphognosis.honey_bees;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.util.Random;
+
+import morphognosis.Metamorph;
+
+public class MetamorphNNDenseCheck
+{
+   // Default maximum weight difference for the networks to match.
+   public static final double DEFAULT_TOLERANCE = 1e-6;
+
+   // Usage.
+   public static final String Usage =
+      "Usage:\n" +
+      "    java morphognosis.honey_bees.MetamorphNNDenseCheck\n" +
+      "      -load <world file name>\n" +
+      "     [-NNhiddenLayers <hidden layers> (default=world file value)]\n" +
+      "     [-NNtrainingTime <epochs> (default=world file value)]\n" +
+      "     [-tolerance <maximum weight difference> (default=" + DEFAULT_TOLERANCE + ")]\n" +
+      "Exit codes:\n" +
+      "  0=networks match\n" +
+      "  1=error\n" +
+      "  2=networks differ";
+
+   // Main.
+   public static void main(String[] args)
+   {
+      String loadfile     = null;
+      String hiddenLayers = null;
+      int    trainingTime = -1;
+      double tolerance    = DEFAULT_TOLERANCE;
+
+      for (int i = 0; i < args.length; i++)
+      {
+         if (args[i].equals("-load"))
+         {
+            i++;
+            if (i >= args.length)
+            {
+               System.err.println("Invalid load option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            loadfile = args[i];
+            continue;
+         }
+         if (args[i].equals("-NNhiddenLayers"))
+         {
+            i++;
+            if (i >= args.length)
+            {
+               System.err.println("Invalid NNhiddenLayers option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            hiddenLayers = args[i];
+            continue;
+         }
+         if (args[i].equals("-NNtrainingTime"))
+         {
+            i++;
+            if (i >= args.length)
+            {
+               System.err.println("Invalid NNtrainingTime option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            try
+            {
+               trainingTime = Integer.parseInt(args[i]);
+            }
+            catch (NumberFormatException e) {
+               System.err.println("Invalid NNtrainingTime option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            if (trainingTime <= 0)
+            {
+               System.err.println("Invalid NNtrainingTime option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            continue;
+         }
+         if (args[i].equals("-tolerance"))
+         {
+            i++;
+            if (i >= args.length)
+            {
+               System.err.println("Invalid tolerance option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            try
+            {
+               tolerance = Double.parseDouble(args[i]);
+            }
+            catch (NumberFormatException e) {
+               System.err.println("Invalid tolerance option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            if (tolerance < 0.0)
+            {
+               System.err.println("Invalid tolerance option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            continue;
+         }
+         if (args[i].equals("-help") || args[i].equals("-h") || args[i].equals("-?"))
+         {
+            System.out.println(Usage);
+            System.exit(0);
+         }
+         System.err.println("Invalid option: " + args[i]);
+         System.err.println(Usage);
+         System.exit(1);
+      }
+      if (loadfile == null)
+      {
+         System.err.println(Usage);
+         System.exit(1);
+      }
+
+      // Load world.
+      World world = null;
+      try
+      {
+         DataInputStream reader = new DataInputStream(new BufferedInputStream(new FileInputStream(new File(loadfile))));
+         Parameters.load(reader);
+         world = new World(Main.DEFAULT_RANDOM_SEED);
+         world.load(reader);
+         reader.close();
+      }
+      catch (Exception e)
+      {
+         System.err.println("Cannot load from file " + loadfile + ": " + e.getMessage());
+         System.exit(1);
+      }
+      if (world.metamorphs.size() == 0)
+      {
+         System.err.println("No metamorphs in file " + loadfile);
+         System.exit(1);
+      }
+      if (hiddenLayers != null)
+      {
+         Parameters.NN_HIDDEN_LAYERS = hiddenLayers;
+      }
+      if (trainingTime != -1)
+      {
+         Parameters.NN_TRAINING_TIME = trainingTime;
+      }
+
+      // Train.
+      MetamorphNN.NATIVE_INFERENCE = true;
+      MetamorphNN.ONLINE_TRAINING  = false;
+      MetamorphNN.DENSE_TRAINING   = false;
+      MetamorphNN weka = new MetamorphNN(new Random(Main.DEFAULT_RANDOM_SEED));
+      long        time = System.nanoTime();
+      weka.train(world.metamorphs);
+      long wekaTime = System.nanoTime() - time;
+      if (weka.inference == null)
+      {
+         System.err.println("Cannot extract Weka network");
+         System.exit(1);
+      }
+      MetamorphNN.DENSE_TRAINING   = true;
+      MetamorphNN.DENSE_BATCH_SIZE = 1;
+      MetamorphNN dense = new MetamorphNN(new Random(Main.DEFAULT_RANDOM_SEED));
+      time = System.nanoTime();
+      dense.train(world.metamorphs);
+      long denseTime = System.nanoTime() - time;
+      if (dense.mlp != null)
+      {
+         System.err.println("Cannot train dense network");
+         System.exit(1);
+      }
+
+      // Compare layouts, normalizations and weights.
+      MetamorphNNInference a = weka.inference;
+      MetamorphNNInference b = dense.inference;
+      if ((a.numLayers != b.numLayers) || (a.inputIndexes.length != b.inputIndexes.length))
+      {
+         System.err.println("Network layouts differ");
+         System.exit(2);
+      }
+      for (int i = 0; i < a.numLayers; i++)
+      {
+         if (a.layerSizes[i] != b.layerSizes[i])
+         {
+            System.err.println("Network layouts differ");
+            System.exit(2);
+         }
+      }
+      double normalizationDifference = 0.0;
+      for (int i = 0; i < a.inputIndexes.length; i++)
+      {
+         if (a.inputIndexes[i] != b.inputIndexes[i])
+         {
+            System.err.println("Network inputs differ");
+            System.exit(2);
+         }
+         if (a.normalizeInputs)
+         {
+            normalizationDifference = Math.max(normalizationDifference, Math.abs(a.inputBases[i] - b.inputBases[i]));
+            normalizationDifference = Math.max(normalizationDifference, Math.abs(a.inputRanges[i] - b.inputRanges[i]));
+         }
+      }
+      double weightDifference = 0.0;
+      for (int i = 1; i < a.numLayers; i++)
+      {
+         for (int j = 0; j < a.layerWeights[i].length; j++)
+         {
+            weightDifference = Math.max(weightDifference, Math.abs(a.layerWeights[i][j] - b.layerWeights[i][j]));
+         }
+      }
+
+      // Compare responses.
+      int agreements = 0;
+      for (Metamorph metamorph : world.metamorphs)
+      {
+         if (weka.respond(metamorph.getMorphognostic()) == dense.respond(metamorph.getMorphognostic()))
+         {
+            agreements++;
+         }
+      }
+      int     numMetamorphs = world.metamorphs.size();
+      boolean match         = (a.normalizeInputs == b.normalizeInputs) &&
+                              (normalizationDifference <= tolerance) && (weightDifference <= tolerance);
+      System.out.println("Metamorphs=" + numMetamorphs + ", hidden layers=" + Parameters.NN_HIDDEN_LAYERS +
+                         ", epochs=" + Parameters.NN_TRAINING_TIME);
+      System.out.println("Weka " + weka.evaluation.split("\n")[0] + ", training time (ms)=" + (wekaTime / 1000000.0));
+      System.out.println("Dense " + dense.evaluation + ", training time (ms)=" + (denseTime / 1000000.0));
+      System.out.println("Maximum normalization difference=" + normalizationDifference);
+      System.out.println("Maximum weight difference=" + weightDifference);
+      System.out.println("Response agreement=" + ((float)agreements / (float)numMetamorphs));
+      System.out.println("Match=" + match);
+      System.exit(match ? 0 : 2);
+   }
+}
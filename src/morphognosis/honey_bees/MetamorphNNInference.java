@@ -0,0 +1,560 @@
+// For conditions of distribution and use, see copyright notice in Main.java
+
+// Metamorph neural network inference.
+// The layers of a trained Weka multilayer perceptron are extracted into flat
+// weight arrays, and forward passes are evaluated into reusable buffers,
+// without creating instances. Evaluation repeats the Weka computation in the
+// same order and precision, so the class distribution and the classification
+// are identical to those of the perceptron.
+// Networks that are not layers of sigmoid units fully connected to the
+// previous layer, such as ones edited in the Weka GUI, are not extracted.
+// Networks trained without Weka are created directly, and are saved and
+// loaded in their own file format instead of as Weka models.
+
+package morphognosis.honey_bees;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+
+import morphognosis.Utility;
+import weka.classifiers.functions.MultilayerPerceptron;
+import weka.classifiers.functions.neural.NeuralConnection;
+import weka.classifiers.functions.neural.NeuralNode;
+import weka.classifiers.functions.neural.SigmoidUnit;
+import weka.core.Instances;
+
+public class MetamorphNNInference
+{
+   // File format identifier, distinct from the start of a serialized Weka model.
+   public static final int FILE_FORMAT = 0x4d4e4e31;
+
+   // Inputs: density vector index of each input.
+   public int   numInputs;
+   public int[] inputIndexes;
+
+   // Input normalization: (density - base) / range, or density - base for a zero range.
+   public boolean  normalizeInputs;
+   public double[] inputBases;
+   public double[] inputRanges;
+
+   // Layers, the input layer first and the output layer, by response, last.
+   // Each unit of a layer after the input layer has a row of weights:
+   // its threshold followed by a weight for each unit of the previous layer.
+   public int        numLayers;
+   public int[]      layerSizes;
+   public double[][] layerWeights;
+
+   // Perceptron units of layers, by layer, for storing trained weights,
+   // null if not extracted from a perceptron.
+   public NeuralNode[][] layerUnits;
+
+   // Unit values by layer, and response probabilities.
+   public double[][] values;
+   public double[]   probabilities;
+
+   // Batch unit values by layer and response probabilities, in rows of batch
+   // density vectors, and the number of rows allocated.
+   public double[][] batchValues;
+   public double[]   batchProbabilities;
+   public int        batchCapacity;
+
+   // Constructor.
+   public MetamorphNNInference(int[] inputIndexes, boolean normalizeInputs,
+                               double[] inputBases, double[] inputRanges,
+                               int[] layerSizes, double[][] layerWeights)
+   {
+      numInputs            = inputIndexes.length;
+      this.inputIndexes    = inputIndexes;
+      this.normalizeInputs = normalizeInputs;
+      this.inputBases      = inputBases;
+      this.inputRanges     = inputRanges;
+      numLayers            = layerSizes.length;
+      this.layerSizes      = layerSizes;
+      this.layerWeights    = layerWeights;
+      values = new double[numLayers][];
+      for (int i = 0; i < numLayers; i++)
+      {
+         values[i] = new double[layerSizes[i]];
+      }
+      probabilities = new double[layerSizes[numLayers - 1]];
+   }
+
+
+   // Extract perceptron network.
+   // Returns null if the network cannot be extracted.
+   public static MetamorphNNInference extract(MultilayerPerceptron mlp)
+   {
+      try
+      {
+         if ((Boolean)getField(mlp, "m_useDefaultModel") || (Boolean)getField(mlp, "m_numeric"))
+         {
+            return(null);
+         }
+         NeuralConnection[] inputs          = (NeuralConnection[])getField(mlp, "m_inputs");
+         NeuralConnection[] outputs         = (NeuralConnection[])getField(mlp, "m_outputs");
+         NeuralConnection[] nodes           = (NeuralConnection[])getField(mlp, "m_neuralNodes");
+         double[]           attributeBases  = (double[])getField(mlp, "m_attributeBases");
+         double[]           attributeRanges = (double[])getField(mlp, "m_attributeRanges");
+         boolean            normalizeInputs = (Boolean)getField(mlp, "m_normalizeAttributes");
+         int                classIndex      = ((Instances)getField(mlp, "m_instances")).classIndex();
+
+         // Output layer units: the single input of each output end.
+         NeuralConnection[] units = new NeuralConnection[outputs.length];
+         for (int i = 0; i < outputs.length; i++)
+         {
+            if (outputs[i].getNumInputs() != 1)
+            {
+               return(null);
+            }
+            units[i] = outputs[i].getInputs()[0];
+         }
+
+         // Layers, from the output layer back to the input layer.
+         ArrayList<NeuralConnection[]> layers = new ArrayList<NeuralConnection[]>();
+         while (true)
+         {
+            if (!isLayer(units))
+            {
+               return(null);
+            }
+            layers.add(0, units);
+            if (layers.size() > nodes.length)
+            {
+               return(null);
+            }
+            NeuralConnection[] previous = new NeuralConnection[units[0].getNumInputs()];
+            System.arraycopy(units[0].getInputs(), 0, previous, 0, previous.length);
+            for (NeuralConnection unit : units)
+            {
+               if (unit.getNumInputs() != previous.length)
+               {
+                  return(null);
+               }
+               NeuralConnection[] unitInputs = unit.getInputs();
+               for (int i = 0; i < previous.length; i++)
+               {
+                  if (unitInputs[i] != previous[i])
+                  {
+                     return(null);
+                  }
+               }
+            }
+            if (previous.length == 0)
+            {
+               return(null);
+            }
+            if (previous[0] instanceof NeuralNode)
+            {
+               units = previous;
+               continue;
+            }
+
+            // Input layer: input ends linked to attributes.
+            int[]    inputIndexes = new int[previous.length];
+            double[] inputBases   = new double[previous.length];
+            double[] inputRanges  = new double[previous.length];
+            for (int i = 0; i < previous.length; i++)
+            {
+               int link = -1;
+               for (NeuralConnection input : inputs)
+               {
+                  if (input == previous[i])
+                  {
+                     link = (Integer)getField(input, "m_link");
+                     break;
+                  }
+               }
+               if ((link < 0) || (link == classIndex))
+               {
+                  return(null);
+               }
+               inputIndexes[i] = (link < classIndex ? link : link - 1);
+               inputBases[i]   = attributeBases[link];
+               inputRanges[i]  = attributeRanges[link];
+            }
+            layers.add(0, previous);
+            int[]          layerSizes   = new int[layers.size()];
+            double[][]     layerWeights = new double[layers.size()][];
+            NeuralNode[][] layerUnits   = new NeuralNode[layers.size()][];
+            layerSizes[0] = previous.length;
+            for (int i = 1; i < layerSizes.length; i++)
+            {
+               NeuralConnection[] layer = layers.get(i);
+               int n = layerSizes[i - 1] + 1;
+               layerSizes[i]   = layer.length;
+               layerWeights[i] = new double[layer.length * n];
+               layerUnits[i]   = new NeuralNode[layer.length];
+               for (int j = 0; j < layer.length; j++)
+               {
+                  layerUnits[i][j] = (NeuralNode)layer[j];
+                  double[] weights = layerUnits[i][j].getWeights();
+                  if (weights.length < n)
+                  {
+                     return(null);
+                  }
+                  System.arraycopy(weights, 0, layerWeights[i], j * n, n);
+               }
+            }
+            MetamorphNNInference inference = new MetamorphNNInference(inputIndexes, normalizeInputs,
+                                                                      inputBases, inputRanges, layerSizes, layerWeights);
+            inference.layerUnits = layerUnits;
+            return(inference);
+         }
+      }
+      catch (Exception e)
+      {
+         return(null);
+      }
+   }
+
+
+   // Store weights into the perceptron units they were extracted from, if any.
+   public void storeWeights()
+   {
+      if (layerUnits == null)
+      {
+         return;
+      }
+      for (int i = 1; i < numLayers; i++)
+      {
+         int n = layerSizes[i - 1] + 1;
+         for (int j = 0; j < layerSizes[i]; j++)
+         {
+            System.arraycopy(layerWeights[i], j * n, layerUnits[i][j].getWeights(), 0, n);
+         }
+      }
+   }
+
+
+   // Copy network, without perceptron units.
+   public MetamorphNNInference copy()
+   {
+      double[][] weights = new double[numLayers][];
+
+      for (int i = 1; i < numLayers; i++)
+      {
+         weights[i] = layerWeights[i].clone();
+      }
+      return(new MetamorphNNInference(inputIndexes.clone(), normalizeInputs, inputBases.clone(),
+                                      inputRanges.clone(), layerSizes.clone(), weights));
+   }
+
+
+   // Save network.
+   public void save(DataOutputStream output) throws IOException
+   {
+      Utility.saveInt(output, FILE_FORMAT);
+      Utility.saveInt(output, numLayers);
+      for (int i = 0; i < numLayers; i++)
+      {
+         Utility.saveInt(output, layerSizes[i]);
+      }
+      Utility.saveInt(output, normalizeInputs ? 1 : 0);
+      for (int i = 0; i < numInputs; i++)
+      {
+         Utility.saveInt(output, inputIndexes[i]);
+         Utility.saveDouble(output, inputBases[i]);
+         Utility.saveDouble(output, inputRanges[i]);
+      }
+      for (int i = 1; i < numLayers; i++)
+      {
+         for (int j = 0; j < layerWeights[i].length; j++)
+         {
+            Utility.saveDouble(output, layerWeights[i][j]);
+         }
+      }
+      output.flush();
+   }
+
+
+   // Load network, after its file format identifier.
+   public static MetamorphNNInference load(DataInputStream input) throws IOException
+   {
+      int numLayers = Utility.loadInt(input);
+
+      if (numLayers < 2)
+      {
+         throw new IOException("Invalid number of layers");
+      }
+      int[] layerSizes = new int[numLayers];
+      for (int i = 0; i < numLayers; i++)
+      {
+         layerSizes[i] = Utility.loadInt(input);
+         if (layerSizes[i] <= 0)
+         {
+            throw new IOException("Invalid layer size");
+         }
+      }
+      boolean  normalizeInputs = (Utility.loadInt(input) == 1);
+      int[]    inputIndexes    = new int[layerSizes[0]];
+      double[] inputBases      = new double[layerSizes[0]];
+      double[] inputRanges     = new double[layerSizes[0]];
+      for (int i = 0; i < layerSizes[0]; i++)
+      {
+         inputIndexes[i] = Utility.loadInt(input);
+         inputBases[i]   = Utility.loadDouble(input);
+         inputRanges[i]  = Utility.loadDouble(input);
+         if (inputIndexes[i] < 0)
+         {
+            throw new IOException("Invalid input index");
+         }
+      }
+      double[][] layerWeights = new double[numLayers][];
+      for (int i = 1; i < numLayers; i++)
+      {
+         layerWeights[i] = new double[layerSizes[i] * (layerSizes[i - 1] + 1)];
+         for (int j = 0; j < layerWeights[i].length; j++)
+         {
+            layerWeights[i][j] = Utility.loadDouble(input);
+         }
+      }
+      return(new MetamorphNNInference(inputIndexes, normalizeInputs, inputBases, inputRanges, layerSizes, layerWeights));
+   }
+
+
+   // Layer of sigmoid units?
+   private static boolean isLayer(NeuralConnection[] units)
+   {
+      if (units.length == 0)
+      {
+         return(false);
+      }
+      for (NeuralConnection unit : units)
+      {
+         if (!(unit instanceof NeuralNode) || !(((NeuralNode)unit).getMethod() instanceof SigmoidUnit))
+         {
+            return(false);
+         }
+      }
+      return(true);
+   }
+
+
+   // Get field value.
+   private static Object getField(Object object, String name) throws Exception
+   {
+      for (Class<?> c = object.getClass(); c != null; c = c.getSuperclass())
+      {
+         try
+         {
+            Field field = c.getDeclaredField(name);
+            field.setAccessible(true);
+            return(field.get(object));
+         }
+         catch (NoSuchFieldException e) {}
+      }
+      throw new NoSuchFieldException(name);
+   }
+
+
+   // Get response probabilities of densities.
+   // Returns null for a null distribution, for which Weka substitutes a default model.
+   // The probabilities are overwritten by the next call.
+   public double[] getProbabilities(float[] densities)
+   {
+      setInputs(densities, 0, values[0], 0);
+      for (int i = 1; i < numLayers; i++)
+      {
+         forward(values[i - 1], layerSizes[i - 1], layerWeights[i], layerSizes[i], 1, values[i]);
+      }
+      double[] output = values[numLayers - 1];
+      double   sum    = 0.0;
+      for (int i = 0; i < output.length; i++)
+      {
+         sum += output[i];
+      }
+      if (sum <= 0.0)
+      {
+         return(null);
+      }
+      for (int i = 0; i < output.length; i++)
+      {
+         probabilities[i] = output[i] / sum;
+      }
+      return(probabilities);
+   }
+
+
+   // Get response probabilities of a batch of density vectors, in rows.
+   // The rows of null distributions are NaN.
+   // The probabilities are overwritten by the next call.
+   public double[] getProbabilities(float[][] densities, int count)
+   {
+      allocateBatch(count);
+      for (int r = 0; r < count; r++)
+      {
+         setInputs(densities[r], 0, batchValues[0], r * numInputs);
+      }
+      return(forwardBatch(count));
+   }
+
+
+   // Get response probabilities of a batch of rows of a density vector matrix,
+   // the batch rows listed from an offset in a list of matrix rows.
+   public double[] getProbabilities(float[] matrix, int columns, int[] rows, int offset, int count)
+   {
+      allocateBatch(count);
+      for (int r = 0; r < count; r++)
+      {
+         setInputs(matrix, rows[offset + r] * columns, batchValues[0], r * numInputs);
+      }
+      return(forwardBatch(count));
+   }
+
+
+   // Set normalized input values from densities starting at an index.
+   private void setInputs(float[] densities, int start, double[] input, int p)
+   {
+      for (int i = 0; i < numInputs; i++, p++)
+      {
+         double value = densities[start + inputIndexes[i]];
+         if (normalizeInputs)
+         {
+            if (inputRanges[i] != 0.0)
+            {
+               value = (value - inputBases[i]) / inputRanges[i];
+            }
+            else
+            {
+               value = value - inputBases[i];
+            }
+         }
+         input[p] = value;
+      }
+   }
+
+
+   // Allocate batch buffers for a number of rows.
+   private void allocateBatch(int count)
+   {
+      if (count > batchCapacity)
+      {
+         batchValues = new double[numLayers][];
+         for (int i = 0; i < numLayers; i++)
+         {
+            batchValues[i] = new double[count * layerSizes[i]];
+         }
+         batchProbabilities = new double[count * layerSizes[numLayers - 1]];
+         batchCapacity      = count;
+      }
+   }
+
+
+   // Evaluate batch layers from the input values and get response probabilities.
+   private double[] forwardBatch(int count)
+   {
+      int numResponses = layerSizes[numLayers - 1];
+
+      for (int i = 1; i < numLayers; i++)
+      {
+         forward(batchValues[i - 1], layerSizes[i - 1], layerWeights[i], layerSizes[i], count, batchValues[i]);
+      }
+      double[] output = batchValues[numLayers - 1];
+      for (int r = 0, p = 0; r < count; r++, p += numResponses)
+      {
+         double sum = 0.0;
+         for (int i = 0; i < numResponses; i++)
+         {
+            sum += output[p + i];
+         }
+         for (int i = 0; i < numResponses; i++)
+         {
+            batchProbabilities[p + i] = (sum <= 0.0 ? Double.NaN : output[p + i] / sum);
+         }
+      }
+      return(batchProbabilities);
+   }
+
+
+   // Compute the unit values of a layer from rows of previous layer values.
+   // Rows are blocked by four, reading each row of weights once per block.
+   // Each unit value is summed in input order, as Weka sums it.
+   private static void forward(double[] in, int n, double[] weights, int m, int rows, double[] out)
+   {
+      int stride = n + 1;
+      int r      = 0;
+
+      for ( ; r + 4 <= rows; r += 4)
+      {
+         int i0 = r * n, i1 = i0 + n, i2 = i1 + n, i3 = i2 + n;
+         int o0 = r * m, o1 = o0 + m, o2 = o1 + m, o3 = o2 + m;
+         for (int j = 0, w = 0; j < m; j++, w += stride)
+         {
+            double v0 = weights[w];
+            double v1 = v0, v2 = v0, v3 = v0;
+            for (int k = 0; k < n; k++)
+            {
+               double weight = weights[w + k + 1];
+               v0 += in[i0 + k] * weight;
+               v1 += in[i1 + k] * weight;
+               v2 += in[i2 + k] * weight;
+               v3 += in[i3 + k] * weight;
+            }
+            out[o0 + j] = sigmoid(v0);
+            out[o1 + j] = sigmoid(v1);
+            out[o2 + j] = sigmoid(v2);
+            out[o3 + j] = sigmoid(v3);
+         }
+      }
+      for ( ; r < rows; r++)
+      {
+         int i0 = r * n;
+         int o0 = r * m;
+         for (int j = 0, w = 0; j < m; j++, w += stride)
+         {
+            double v0 = weights[w];
+            for (int k = 0; k < n; k++)
+            {
+               v0 += in[i0 + k] * weights[w + k + 1];
+            }
+            out[o0 + j] = sigmoid(v0);
+         }
+      }
+   }
+
+
+   // Sigmoid, as the Weka sigmoid unit.
+   public static double sigmoid(double value)
+   {
+      if (value < -45.0)
+      {
+         return(0.0);
+      }
+      else if (value > 45.0)
+      {
+         return(1.0);
+      }
+      else
+      {
+         return(1.0 / (1.0 + Math.exp(-value)));
+      }
+   }
+
+
+   // Get the most probable response, the first of equals, as Weka classifies.
+   // A response without probability is 0, the missing value classification cast to a response.
+   public static int getResponse(double[] probabilities)
+   {
+      return(getResponse(probabilities, 0, probabilities.length));
+   }
+
+
+   public static int getResponse(double[] probabilities, int offset, int length)
+   {
+      double max      = 0.0;
+      int    response = 0;
+
+      for (int i = 0; i < length; i++)
+      {
+         if (probabilities[offset + i] > max)
+         {
+            max      = probabilities[offset + i];
+            response = i;
+         }
+      }
+      return(response);
+   }
+}
@@ -0,0 +1,169 @@
+// For conditions of distribution and use, see copyright notice in Main.java
+
+// Metamorph neural network learner.
+// Trains the layers of an inference engine by backpropagation in mini-batches.
+// As in the Weka perceptron, units are sigmoid, the error is squared against
+// response targets of 1 and 0, and weights change by the learning rate times
+// the error gradient plus the momentum times the previous change. The gradient
+// is averaged over the mini-batch.
+
+package morphognosis.honey_bees;
+
+public class MetamorphNNLearner
+{
+   // Network.
+   public MetamorphNNInference network;
+
+   // Learning rate and momentum.
+   public double learningRate;
+   public double momentum;
+
+   // Weight changes of the latest update, by layer, for momentum.
+   public double[][] changes;
+
+   // Unit errors by layer and response targets, in rows of the mini-batch,
+   // and the number of rows allocated.
+   public double[][] errors;
+   public int[]      targets;
+   public int        errorCapacity;
+
+   // Constructor.
+   public MetamorphNNLearner(MetamorphNNInference network, double learningRate, double momentum)
+   {
+      this.network      = network;
+      this.learningRate = learningRate;
+      this.momentum     = momentum;
+      changes           = new double[network.numLayers][];
+      for (int i = 1; i < network.numLayers; i++)
+      {
+         changes[i] = new double[network.layerWeights[i].length];
+      }
+   }
+
+
+   // Train a mini-batch of density vectors and responses.
+   // Returns the squared error of the batch before training.
+   public double train(float[][] densities, int[] responses, int count)
+   {
+      network.getProbabilities(densities, count);
+      return(backpropagate(responses, count));
+   }
+
+
+   // Train a mini-batch of rows of a density vector matrix, the batch rows
+   // listed from an offset in a list of matrix rows, with responses by matrix row.
+   public double train(float[] matrix, int columns, int[] rows, int offset, int count, int[] responses)
+   {
+      allocate(count);
+      for (int r = 0; r < count; r++)
+      {
+         targets[r] = responses[rows[offset + r]];
+      }
+      network.getProbabilities(matrix, columns, rows, offset, count);
+      return(backpropagate(targets, count));
+   }
+
+
+   // Allocate mini-batch buffers for a number of rows.
+   private void allocate(int count)
+   {
+      if (count > errorCapacity)
+      {
+         errors = new double[network.numLayers][];
+         for (int i = 1; i < network.numLayers; i++)
+         {
+            errors[i] = new double[count * network.layerSizes[i]];
+         }
+         targets       = new int[count];
+         errorCapacity = count;
+      }
+   }
+
+
+   // Backpropagate errors of the network values of a mini-batch to its responses,
+   // and update the weights.
+   private double backpropagate(int[] responses, int count)
+   {
+      int        numLayers    = network.numLayers;
+      int[]      layerSizes   = network.layerSizes;
+      double[][] layerWeights = network.layerWeights;
+      double[][] values       = network.batchValues;
+      double     error        = 0.0;
+
+      allocate(count);
+
+      // Output unit errors.
+      int      m      = layerSizes[numLayers - 1];
+      double[] output = values[numLayers - 1];
+      double[] e      = errors[numLayers - 1];
+      for (int r = 0, p = 0; r < count; r++)
+      {
+         for (int j = 0; j < m; j++, p++)
+         {
+            double o = output[p];
+            double d = (j == responses[r] ? 1.0 : 0.0) - o;
+            e[p]   = d * o * (1.0 - o);
+            error += d * d;
+         }
+      }
+
+      // Hidden unit errors, back from the output layer.
+      for (int i = numLayers - 2; i > 0; i--)
+      {
+         int      n       = layerSizes[i];
+         int      next    = layerSizes[i + 1];
+         double[] weights = layerWeights[i + 1];
+         double[] v       = values[i];
+         double[] e2      = errors[i + 1];
+         e = errors[i];
+         for (int r = 0; r < count; r++)
+         {
+            for (int j = 0; j < n; j++)
+            {
+               double s = 0.0;
+               for (int k = 0, w = j + 1; k < next; k++, w += n + 1)
+               {
+                  s += e2[r * next + k] * weights[w];
+               }
+               double o = v[r * n + j];
+               e[r * n + j] = s * o * (1.0 - o);
+            }
+         }
+      }
+
+      // Update weights with the mean gradients.
+      double rate = learningRate / (double)count;
+      for (int i = 1; i < numLayers; i++)
+      {
+         int      n       = layerSizes[i - 1];
+         int      units   = layerSizes[i];
+         double[] input   = values[i - 1];
+         double[] weights = layerWeights[i];
+         double[] change  = changes[i];
+         e = errors[i];
+         for (int j = 0, w = 0; j < units; j++, w += n + 1)
+         {
+            double g = 0.0;
+            for (int r = 0; r < count; r++)
+            {
+               g += e[r * units + j];
+            }
+            double c = rate * g + momentum * change[w];
+            weights[w] += c;
+            change[w]   = c;
+            for (int k = 0; k < n; k++)
+            {
+               g = 0.0;
+               for (int r = 0; r < count; r++)
+               {
+                  g += e[r * units + j] * input[r * n + k];
+               }
+               c = rate * g + momentum * change[w + k + 1];
+               weights[w + k + 1] += c;
+               change[w + k + 1]   = c;
+            }
+         }
+      }
+      return(error);
+   }
+}
@@ -0,0 +1,351 @@
+// For conditions of distribution and use, see copyright notice in Main.java
+
+// Benchmark morphognostic compare paths on the metamorphs of a saved world.
+// Each path compares the same pairs of metamorph morphognostics:
+//   rectified copy: neighborhood sector densities copied into rectified order
+//                   for each compare, the allocating neighborhood compare
+//   in place:       neighborhood compare through precomputed rectified orders
+//   density vector: float loop over the density vectors
+//   signature:      bit count of density signatures, for binary aggregation
+//   stored density vector: float loop over a density vector and a row of
+//                   the off-heap metamorph store
+//   stored signature: bit count of a density signature and the signature
+//                   words of an off-heap row, for binary aggregation
+// A round times every path; the fastest round of each path is reported.
+// Distances are checked to agree: the neighborhood paths bit for bit, and
+// the signature and stored paths with the density vector path.
+
+package morphognosis.honey_bees;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.util.Random;
+
+import morphognosis.MetamorphStore;
+import morphognosis.Morphognostic;
+import morphognosis.MorphognosticSnapshot;
+
+public class MorphognosticCompareBenchmark
+{
+   // Defaults.
+   public static final int DEFAULT_NUM_PAIRS  = 100000;
+   public static final int DEFAULT_NUM_ROUNDS = 5;
+
+   // Paths.
+   public static final int      RECTIFIED_COPY        = 0;
+   public static final int      IN_PLACE              = 1;
+   public static final int      DENSITY_VECTOR        = 2;
+   public static final int      SIGNATURE             = 3;
+   public static final int      STORED_DENSITY_VECTOR = 4;
+   public static final int      STORED_SIGNATURE      = 5;
+   public static final int      NUM_PATHS             = 6;
+   public static final String[] PATH_NAMES            =
+   {
+      "rectified copy", "in place", "density vector", "signature", "stored density vector", "stored signature"
+   };
+   // Usage.
+   public static final String Usage =
+      "Usage:\n" +
+      "    java morphognosis.honey_bees.MorphognosticCompareBenchmark\n" +
+      "      -load <world file name>\n" +
+      "     [-pairs <number of morphognostic pairs> (default=" + DEFAULT_NUM_PAIRS + ")]\n" +
+      "     [-rounds <number of timing rounds> (default=" + DEFAULT_NUM_ROUNDS + ")]\n" +
+      "     [-randomSeed <random number seed> (default=" + Main.DEFAULT_RANDOM_SEED + ")]\n" +
+      "Exit codes:\n" +
+      "  0=success\n" +
+      "  1=error";
+
+   // Sink for distances, so that compares are not optimized away.
+   public static float sink;
+
+   // Off-heap store of the morphognostics, and their rows.
+   public static MetamorphStore store;
+   public static int[]          rows;
+
+   // Main.
+   public static void main(String[] args)
+   {
+      String loadfile   = null;
+      int    numPairs   = DEFAULT_NUM_PAIRS;
+      int    numRounds  = DEFAULT_NUM_ROUNDS;
+      int    randomSeed = Main.DEFAULT_RANDOM_SEED;
+
+      for (int i = 0; i < args.length; i++)
+      {
+         if (args[i].equals("-load"))
+         {
+            i++;
+            if (i >= args.length)
+            {
+               System.err.println("Invalid load option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            loadfile = args[i];
+            continue;
+         }
+         if (args[i].equals("-pairs"))
+         {
+            i++;
+            if (i >= args.length)
+            {
+               System.err.println("Invalid pairs option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            try
+            {
+               numPairs = Integer.parseInt(args[i]);
+            }
+            catch (NumberFormatException e) {
+               System.err.println("Invalid pairs option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            if (numPairs <= 0)
+            {
+               System.err.println("Invalid pairs option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            continue;
+         }
+         if (args[i].equals("-rounds"))
+         {
+            i++;
+            if (i >= args.length)
+            {
+               System.err.println("Invalid rounds option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            try
+            {
+               numRounds = Integer.parseInt(args[i]);
+            }
+            catch (NumberFormatException e) {
+               System.err.println("Invalid rounds option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            if (numRounds <= 0)
+            {
+               System.err.println("Invalid rounds option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            continue;
+         }
+         if (args[i].equals("-randomSeed"))
+         {
+            i++;
+            if (i >= args.length)
+            {
+               System.err.println("Invalid randomSeed option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            try
+            {
+               randomSeed = Integer.parseInt(args[i]);
+            }
+            catch (NumberFormatException e) {
+               System.err.println("Invalid randomSeed option");
+               System.err.println(Usage);
+               System.exit(1);
+            }
+            continue;
+         }
+         if (args[i].equals("-help") || args[i].equals("-h") || args[i].equals("-?"))
+         {
+            System.out.println(Usage);
+            System.exit(0);
+         }
+         System.err.println("Invalid option: " + args[i]);
+         System.err.println(Usage);
+         System.exit(1);
+      }
+      if (loadfile == null)
+      {
+         System.err.println(Usage);
+         System.exit(1);
+      }
+
+      // Load world.
+      World world = null;
+      try
+      {
+         DataInputStream reader = new DataInputStream(new BufferedInputStream(new FileInputStream(new File(loadfile))));
+         Parameters.load(reader);
+         world = new World(randomSeed);
+         world.load(reader);
+         reader.close();
+      }
+      catch (Exception e)
+      {
+         System.err.println("Cannot load from file " + loadfile + ": " + e.getMessage());
+         System.exit(1);
+      }
+      int numMetamorphs = world.metamorphs.size();
+      if (numMetamorphs < 2)
+      {
+         System.err.println("Too few metamorphs in file " + loadfile);
+         System.exit(1);
+      }
+
+      // Morphognostics and pairs.
+      Morphognostic[] morphognostics = new Morphognostic[numMetamorphs];
+      boolean         signatures     = true;
+      for (int i = 0; i < numMetamorphs; i++)
+      {
+         morphognostics[i] = world.metamorphs.get(i).getMorphognostic();
+         morphognostics[i].getDensitySignature();
+         if (!morphognostics[i].densitySignatureValid)
+         {
+            signatures = false;
+         }
+      }
+      store = new MetamorphStore();
+      rows  = new int[numMetamorphs];
+      for (int i = 0; i < numMetamorphs; i++)
+      {
+         rows[i] = store.add(new MorphognosticSnapshot(morphognostics[i]));
+      }
+      Random random = new Random(randomSeed);
+      int[]  pairs1 = new int[numPairs];
+      int[]  pairs2 = new int[numPairs];
+      for (int i = 0; i < numPairs; i++)
+      {
+         pairs1[i] = random.nextInt(numMetamorphs);
+         pairs2[i] = random.nextInt(numMetamorphs);
+      }
+
+      // Check distances.
+      int mismatches = 0;
+      for (int i = 0; i < numPairs; i++)
+      {
+         int   j = pairs1[i];
+         int   k = pairs2[i];
+         float d = compare(RECTIFIED_COPY, morphognostics, j, k);
+         float v = compare(DENSITY_VECTOR, morphognostics, j, k);
+         if ((Float.floatToIntBits(d) != Float.floatToIntBits(compare(IN_PLACE, morphognostics, j, k))) ||
+             (compare(STORED_DENSITY_VECTOR, morphognostics, j, k) != v) ||
+             (signatures && ((compare(SIGNATURE, morphognostics, j, k) != v) ||
+                             (compare(STORED_SIGNATURE, morphognostics, j, k) != v))))
+         {
+            mismatches++;
+         }
+      }
+
+      // Time paths.
+      long[] times = new long[NUM_PATHS];
+      for (int path = 0; path < NUM_PATHS; path++)
+      {
+         times[path] = Long.MAX_VALUE;
+      }
+      for (int round = 0; round < numRounds; round++)
+      {
+         for (int path = 0; path < NUM_PATHS; path++)
+         {
+            if (((path == SIGNATURE) || (path == STORED_SIGNATURE)) && !signatures)
+            {
+               continue;
+            }
+            long  time = System.nanoTime();
+            float sum  = 0.0f;
+            for (int i = 0; i < numPairs; i++)
+            {
+               sum += compare(path, morphognostics, pairs1[i], pairs2[i]);
+            }
+            time        = System.nanoTime() - time;
+            sink       += sum;
+            times[path] = Math.min(times[path], time);
+         }
+      }
+      System.out.println("Metamorphs=" + numMetamorphs + ", density vector length=" +
+                         morphognostics[0].getDensityVector().length + ", pairs=" + numPairs +
+                         ", rounds=" + numRounds);
+      System.out.println("Distance mismatches=" + mismatches);
+      System.out.println("Path\tMean compare time (ns)");
+      for (int path = 0; path < NUM_PATHS; path++)
+      {
+         if (((path == SIGNATURE) || (path == STORED_SIGNATURE)) && !signatures)
+         {
+            System.out.println(PATH_NAMES[path] + "\tnot binary");
+         }
+         else
+         {
+            System.out.println(PATH_NAMES[path] + "\t" +
+                               String.format("%.1f", (double)times[path] / (double)numPairs));
+         }
+      }
+      System.exit(0);
+   }
+
+
+   // Compare morphognostics, the second stored for the stored paths, by path.
+   public static float compare(int path, Morphognostic[] morphognostics, int i1, int i2)
+   {
+      Morphognostic m1 = morphognostics[i1];
+      Morphognostic m2 = morphognostics[i2];
+      float         d  = 0.0f;
+
+      switch (path)
+      {
+      case RECTIFIED_COPY:
+         for (int i = 0; i < m1.NUM_NEIGHBORHOODS; i++)
+         {
+            d += compareRectifiedCopy(m1, m1.neighborhoods.get(i), m2.neighborhoods.get(i));
+         }
+         break;
+
+      case IN_PLACE:
+         for (int i = 0; i < m1.NUM_NEIGHBORHOODS; i++)
+         {
+            d += m1.neighborhoods.get(i).compare(m2.neighborhoods.get(i));
+         }
+         break;
+
+      case DENSITY_VECTOR:
+         d = m1.compare(m2.getDensityVector());
+         break;
+
+      case SIGNATURE:
+         d = m1.compare(m2.getDensitySignature());
+         break;
+
+      case STORED_DENSITY_VECTOR:
+         d = store.compare(m1.getDensityVector(), rows[i2]);
+         break;
+
+      case STORED_SIGNATURE:
+         d = store.compare(m1.getDensitySignature(), m1.getDensityVector(), rows[i2]);
+         break;
+      }
+      return(d);
+   }
+
+
+   // Compare neighborhoods through rectified copies of their sector densities.
+   private static float compareRectifiedCopy(Morphognostic m, Morphognostic.Neighborhood n1,
+                                             Morphognostic.Neighborhood n2)
+   {
+      float       c          = 0.0f;
+      float[][][] densities1 = n1.rectifySectorValueDensities();
+      float[][][] densities2 = n2.rectifySectorValueDensities();
+
+      for (int i = 0, j = n1.sectors.length * n1.sectors.length; i < j; i++)
+      {
+         for (int d = 0; d < m.eventDimensions; d++)
+         {
+            for (int k = 0; k < m.eventValueDimensions[d]; k++)
+            {
+               c += Math.abs(densities1[i][d][k] - densities2[i][d][k]);
+            }
+         }
+      }
+      return(c);
+   }
+}
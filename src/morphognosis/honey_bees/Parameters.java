@@ -41,9 +41,20 @@ public class Parameters
    public static String NN_HIDDEN_LAYERS = "50";
    public static int    NN_TRAINING_TIME = 5000;
 
+   // World file format: the parameters begin a world file, so they are
+   // preceded by its marker and version. Version 2 saves metamorph links
+   // as a compressed graph after the metamorphs; version 1 has no marker,
+   // beginning with the world width, and saves links after each metamorph.
+   // The version of the world file loaded is kept for loading the world.
+   public static final int WORLD_FILE_MAGIC   = 0x48425746;
+   public static final int WORLD_FILE_VERSION = 2;
+   public static int       LOADED_WORLD_FILE_VERSION = WORLD_FILE_VERSION;
+
    // Save.
    public static void save(DataOutputStream writer) throws IOException
    {
+      Utility.saveInt(writer, WORLD_FILE_MAGIC);
+      Utility.saveInt(writer, WORLD_FILE_VERSION);
       Utility.saveInt(writer, WORLD_WIDTH);
       Utility.saveInt(writer, WORLD_HEIGHT);
       Utility.saveInt(writer, HIVE_RADIUS);
@@ -80,7 +91,26 @@ public class Parameters
    // Load.
    public static void load(DataInputStream reader) throws IOException
    {
-      WORLD_WIDTH  = Utility.loadInt(reader);
+      int width = Utility.loadInt(reader);
+      if (width == WORLD_FILE_MAGIC)
+      {
+         int version = Utility.loadInt(reader);
+         if ((version < 1) || (version > WORLD_FILE_VERSION))
+         {
+            throw new IOException("Unsupported world file version " + version + ", expected at most " + WORLD_FILE_VERSION);
+         }
+         LOADED_WORLD_FILE_VERSION = version;
+         width = Utility.loadInt(reader);
+      }
+      else
+      {
+         LOADED_WORLD_FILE_VERSION = 1;
+      }
+      if (width <= 0)
+      {
+         throw new IOException("Not a world file");
+      }
+      WORLD_WIDTH  = width;
       WORLD_HEIGHT = Utility.loadInt(reader);
       HIVE_RADIUS  = Utility.loadInt(reader);
       NUM_FLOWERS  = Utility.loadInt(reader);
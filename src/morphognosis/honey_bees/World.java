@@ -5,13 +5,27 @@
 package morphognosis.honey_bees;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
 
+import morphognosis.IndexList;
+import morphognosis.LinkSet;
+import morphognosis.MappedMetamorphDB;
 import morphognosis.Metamorph;
+import morphognosis.MetamorphGraph;
+import morphognosis.MetamorphIndex;
+import morphognosis.MetamorphStore;
 import morphognosis.Morphognostic;
+import morphognosis.MorphognosticSnapshot;
 import morphognosis.Orientation;
+import morphognosis.PartitionedMetamorphIndex;
 import morphognosis.Utility;
-import morphognosis.Morphognostic.Neighborhood;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
@@ -50,6 +64,29 @@ public class World
    // Metamorph neural network.
    public MetamorphNN metamorphNN;
 
+   // Background metamorph neural network training: a worker thread trains
+   // a network on a copy of the metamorphs, and the trained network replaces
+   // the metamorph neural network at the start of the next step. Training
+   // starts every interval steps, 0 for never, unless already in progress.
+   // The metamorph versions that the latest training and the published network
+   // were trained on tell whether the network is out of date; the published
+   // version is -1 if the network was not trained in the background.
+   public static int                   METAMORPH_NN_TRAINING_INTERVAL = 0;
+   public int                          metamorphNNtrainingTimer;
+   public Thread                       metamorphNNtrainingThread;
+   public AtomicReference<MetamorphNN> trainedMetamorphNN = new AtomicReference<MetamorphNN>();
+   public long                         metamorphNNtrainingVersion;
+   public long                         metamorphNNversion = -1;
+
+   // Samples of metamorphs added since the latest metamorph neural network
+   // training, for online training: density vectors and responses.
+   public ArrayList<float[]> newNNdensities;
+   public IndexList          newNNresponses;
+
+   // Batch the metamorph neural network responses of the bees in a step.
+   public static boolean BATCH_METAMORPH_NN = true;
+   public boolean        batchingMetamorphNN;
+
    // Metamorph dataset file name.
    public static String METAMORPH_DATASET_FILE_BASENAME = "metamorphs";
    public String        metamorphDatasetFilename;
@@ -57,6 +94,82 @@ public class World
    // Maximum distance between equivalent morphognostics.
    public static float EQUIVALENT_MORPHOGNOSTIC_DISTANCE = 0.0f;
 
+   // Metamorph hash: indexes of metamorphs by morphognostic density vector,
+   // for finding equivalent morphognostics when the maximum distance is zero.
+   // Synchronized lazily with the first metamorphHashSize metamorphs.
+   public HashMap<DensityKey, Integer> metamorphHash;
+   public int       metamorphHashSize;
+   public Metamorph metamorphHashLast;
+
+   // Cause to effect metamorph links, rebuilt when null.
+   public LinkSet metamorphLinks;
+
+   // Metamorph capacity, 0 for unbounded. When exceeded, metamorphs are evicted
+   // by the eviction policy, down to the capacity less the eviction batch fraction.
+   public static int   METAMORPH_CAPACITY       = 0;
+   public static float METAMORPH_EVICTION_BATCH = 0.1f;
+
+   // Metamorph eviction policies.
+   public static final int EVICT_LEAST_RECENTLY_MATCHED   = 0;
+   public static final int EVICT_LOWEST_GOAL_VALUE        = 1;
+   public static final int EVICT_LEAST_FREQUENTLY_MATCHED = 2;
+   public static int       METAMORPH_EVICTION_POLICY      = EVICT_LEAST_RECENTLY_MATCHED;
+
+   // Metamorph match clock and eviction counters.
+   public long metamorphMatchClock;
+   public long metamorphsEvicted;
+   public int  metamorphEvictions;
+
+   // Metamorph compaction: metamorphs within the radius of a cluster prototype
+   // having the same response are merged into it, every interval steps, 0 for never.
+   public static float METAMORPH_COMPACTION_RADIUS   = 0.0f;
+   public static int   METAMORPH_COMPACTION_INTERVAL = 0;
+   public int          metamorphCompactionTimer;
+
+   // Metamorph compaction counters.
+   public long metamorphsCompacted;
+   public int  metamorphCompactions;
+
+   // Metamorph nearest neighbor index type and index, created on first search.
+   public static int     METAMORPH_INDEX_TYPE = MetamorphIndex.VP_TREE;
+   public MetamorphIndex metamorphIndex;
+
+   // Partitioned metamorph index key event dimensions, null for all events of neighborhood 0.
+   public static int[] METAMORPH_PARTITION_KEY =
+   {
+      HoneyBee.HIVE_PRESENCE_EVENT,
+      HoneyBee.ORIENTATION_EVENT,
+      HoneyBee.ORIENTATION_EVENT + 1,
+      HoneyBee.ORIENTATION_EVENT + 2,
+      HoneyBee.ORIENTATION_EVENT + 3,
+      HoneyBee.ORIENTATION_EVENT + 4,
+      HoneyBee.ORIENTATION_EVENT + 5,
+      HoneyBee.ORIENTATION_EVENT + 6,
+      HoneyBee.ORIENTATION_EVENT + 7,
+      HoneyBee.NECTAR_CARRY_EVENT
+   };
+
+   // Metamorph version: changed whenever metamorph search results may change.
+   public long metamorphVersion;
+
+   // Metamorph search cache: search results by query density vector, bounded
+   // by the capacity with least recently used results dropped, 0 for no cache.
+   // The cache is cleared when the metamorph version changes.
+   public static int METAMORPH_CACHE_CAPACITY = 1024;
+   public LinkedHashMap<DensityKey, MetamorphIndex.SearchResult> metamorphCache;
+   public long metamorphCacheVersion;
+   public long metamorphCacheHits;
+   public long metamorphCacheMisses;
+
+   // Off-heap metamorph storage: metamorph morphognostic densities are kept
+   // in the store, and the morphognostics dropped.
+   public static boolean OFF_HEAP_METAMORPHS = false;
+   public MetamorphStore metamorphStore;
+
+   // Memory-mapped metamorph DB: when open, metamorph DB responses are
+   // searched in it instead of in the metamorphs.
+   public MappedMetamorphDB mappedMetamorphs;
+
    // Constructor.
    public World(int randomSeed)
    {
@@ -129,6 +242,12 @@ public class World
       // Create metamorphs.
       currentMetamorphIdx = -1;
       metamorphs          = new ArrayList<Metamorph>();
+      metamorphHash       = new HashMap<DensityKey, Integer>();
+      metamorphHashSize   = 0;
+      metamorphHashLast   = null;
+      metamorphStore      = new MetamorphStore();
+      newNNdensities      = new ArrayList<float[]>();
+      newNNresponses      = new IndexList();
 
       // Initialize driver.
       driver = Driver.AUTOPILOT;
@@ -218,6 +337,7 @@ public class World
       {
          m.save(writer);
       }
+      MetamorphGraph.freeze(metamorphs).save(writer);
       Utility.saveFloat(writer, EQUIVALENT_MORPHOGNOSTIC_DISTANCE);
       Utility.saveInt(writer, collectedNectar);
       writer.flush();
@@ -258,11 +378,59 @@ public class World
       }
       currentMetamorphIdx = Utility.loadInt(reader);
       metamorphs.clear();
+      metamorphStore.clear();
       int n = Utility.loadInt(reader);
+      if (n < 0)
+      {
+         throw new IOException("Invalid number of metamorphs");
+      }
+
+      // Version 1 world files save the links of each metamorph after it.
+      boolean   inlineLinks   = (Parameters.LOADED_WORLD_FILE_VERSION == 1);
+      int[]     causeOffsets  = null;
+      int[]     effectOffsets = null;
+      IndexList causeIndexes  = null;
+      IndexList effectIndexes = null;
+      if (inlineLinks)
+      {
+         causeOffsets  = new int[n + 1];
+         effectOffsets = new int[n + 1];
+         causeIndexes  = new IndexList();
+         effectIndexes = new IndexList();
+      }
       for (int i = 0; i < n; i++)
       {
-         metamorphs.add(Metamorph.load(reader));
+         Metamorph metamorph = Metamorph.load(reader);
+         if (inlineLinks)
+         {
+            MetamorphGraph.loadLinks(reader, i, causeOffsets, causeIndexes, effectOffsets, effectIndexes);
+         }
+         if (OFF_HEAP_METAMORPHS)
+         {
+            metamorph.store(metamorphStore);
+         }
+         metamorphs.add(metamorph);
+      }
+      MetamorphGraph graph;
+      if (inlineLinks)
+      {
+         graph = new MetamorphGraph(n, causeOffsets, Arrays.copyOf(causeIndexes.indexes, causeIndexes.size()),
+                                    effectOffsets, Arrays.copyOf(effectIndexes.indexes, effectIndexes.size()));
+         graph.check();
+      }
+      else
+      {
+         graph = MetamorphGraph.load(reader);
       }
+      if (graph.numMetamorphs != n)
+      {
+         throw new IOException("Invalid metamorph graph");
+      }
+      graph.thaw(metamorphs);
+      invalidateMetamorphHash();
+      metamorphIndex = null;
+      metamorphVersion++;
+      metamorphLinks = null;
       EQUIVALENT_MORPHOGNOSTIC_DISTANCE = Utility.loadFloat(reader);
       collectedNectar = Utility.loadInt(reader);
    }
@@ -271,8 +439,25 @@ public class World
    // Step world.
    public void step()
    {
+      publishMetamorphNN();
       stepFlowers();
       stepBees();
+
+      // Compact metamorphs?
+      if ((METAMORPH_COMPACTION_INTERVAL > 0) &&
+          (++metamorphCompactionTimer >= METAMORPH_COMPACTION_INTERVAL))
+      {
+         metamorphCompactionTimer = 0;
+         compactMetamorphs(METAMORPH_COMPACTION_RADIUS);
+      }
+
+      // Train metamorph neural network in background?
+      if ((METAMORPH_NN_TRAINING_INTERVAL > 0) &&
+          (++metamorphNNtrainingTimer >= METAMORPH_NN_TRAINING_INTERVAL))
+      {
+         metamorphNNtrainingTimer = 0;
+         startMetamorphNNtraining();
+      }
    }
 
 
@@ -301,11 +486,17 @@ public class World
       // Run sensory-response cycles.
       int responses[] = new int[Parameters.NUM_BEES];
 
+      batchingMetamorphNN = BATCH_METAMORPH_NN && (metamorphNN != null) && (metamorphNN.inference != null);
       for (int i = 0; i < Parameters.NUM_BEES; i++)
       {
          HoneyBee bee = bees[i];
          responses[i] = bee.cycle(getSensors(bee));
       }
+      if (batchingMetamorphNN)
+      {
+         respondMetamorphNNbatch(responses);
+         batchingMetamorphNN = false;
+      }
 
       // Execute responses in random order.
       int n = random.nextInt(Parameters.NUM_BEES);
@@ -372,6 +563,38 @@ public class World
    }
 
 
+   // Respond to the bees awaiting metamorph neural network responses in one batch.
+   // A metamorph neural network response depends only on the bee's morphognostic,
+   // so deferring it past the cycles of later bees does not change it.
+   public void respondMetamorphNNbatch(int[] responses)
+   {
+      int[]           beeIndexes     = new int[Parameters.NUM_BEES];
+      Morphognostic[] morphognostics = new Morphognostic[Parameters.NUM_BEES];
+      int             count          = 0;
+
+      for (int i = 0; i < Parameters.NUM_BEES; i++)
+      {
+         if (bees[i].awaitingNNresponse)
+         {
+            beeIndexes[count]       = i;
+            morphognostics[count++] = bees[i].morphognostic;
+         }
+      }
+      if (count == 0)
+      {
+         return;
+      }
+      int[] batchResponses = new int[count];
+      metamorphNN.respond(morphognostics, count, batchResponses);
+      for (int i = 0; i < count; i++)
+      {
+         HoneyBee bee = bees[beeIndexes[i]];
+         bee.setMetamorphNNresponse(batchResponses[i]);
+         responses[beeIndexes[i]] = bee.response;
+      }
+   }
+
+
    // Get bee sensors.
    public float[] getSensors(HoneyBee bee)
    {
@@ -488,35 +711,52 @@ public class World
    // Update metamorphs.
    public void updateMetamorphs(Morphognostic morphognostic, int response, float goalValue)
    {
-      Metamorph metamorph = new Metamorph(morphognostic.clone(), response,
-                                          goalValue, HoneyBee.getResponseName(response));
+      Metamorph metamorph = new Metamorph(new MorphognosticSnapshot(morphognostic, Orientation.NORTH),
+                                          response, goalValue, HoneyBee.getResponseName(response));
 
-      metamorph.morphognostic.orientation = Orientation.NORTH;
       int foundIdx = -1;
-      for (int i = 0, j = metamorphs.size(); i < j; i++)
+      if (EQUIVALENT_MORPHOGNOSTIC_DISTANCE == 0.0f)
       {
-         Metamorph m = metamorphs.get(i);
-         if (m.morphognostic.compare(metamorph.morphognostic) <= EQUIVALENT_MORPHOGNOSTIC_DISTANCE)
+         foundIdx = findMetamorphHash(metamorph);
+      }
+      else
+      {
+         for (int i = 0, j = metamorphs.size(); i < j; i++)
          {
-            foundIdx = i;
-            break;
+            Metamorph m = metamorphs.get(i);
+            if (m.compare(metamorph) <= EQUIVALENT_MORPHOGNOSTIC_DISTANCE)
+            {
+               foundIdx = i;
+               break;
+            }
          }
       }
       if (foundIdx == -1)
       {
+         if (MetamorphNN.ONLINE_TRAINING)
+         {
+            newNNdensities.add(metamorph.snapshot.densities);
+            newNNresponses.add(metamorph.response);
+         }
+         if (OFF_HEAP_METAMORPHS)
+         {
+            metamorph.store(metamorphStore);
+         }
          metamorphs.add(metamorph);
          foundIdx = metamorphs.size() - 1;
+         metamorphVersion++;
+         if (metamorphIndex != null)
+         {
+            metamorphIndex.sync(metamorphs);
+         }
       }
+      matchMetamorph(metamorphs.get(foundIdx));
       if (currentMetamorphIdx != -1)
       {
          Metamorph currentMetamorph = metamorphs.get(currentMetamorphIdx);
-         for (int i = 0, j = currentMetamorph.effectIndexes.size(); i < j; i++)
+         if (!getMetamorphLinks().add(currentMetamorphIdx, foundIdx))
          {
-            if (currentMetamorph.effectIndexes.get(i) == foundIdx)
-            {
-               foundIdx = -1;
-               break;
-            }
+            foundIdx = -1;
          }
          if (foundIdx != -1)
          {
@@ -528,30 +768,711 @@ public class World
          }
       }
       currentMetamorphIdx = foundIdx;
+
+      // Evict metamorphs?
+      if ((METAMORPH_CAPACITY > 0) && (metamorphs.size() > METAMORPH_CAPACITY))
+      {
+         int n = METAMORPH_CAPACITY - (int)((float)METAMORPH_CAPACITY * METAMORPH_EVICTION_BATCH);
+         evictMetamorphs(metamorphs.size() - Math.max(n, 1));
+      }
+   }
+
+
+   // Get set of metamorph links, rebuilding it if needed.
+   public LinkSet getMetamorphLinks()
+   {
+      if (metamorphLinks == null)
+      {
+         metamorphLinks = new LinkSet();
+         for (int i = 0, j = metamorphs.size(); i < j; i++)
+         {
+            IndexList effectIndexes = metamorphs.get(i).effectIndexes;
+            for (int k = 0, k2 = effectIndexes.size(); k < k2; k++)
+            {
+               metamorphLinks.add(i, effectIndexes.get(k));
+            }
+         }
+      }
+      return(metamorphLinks);
+   }
+
+
+   // Record metamorph match.
+   public void matchMetamorph(Metamorph metamorph)
+   {
+      metamorph.matchCount++;
+      metamorph.matchTime = ++metamorphMatchClock;
+   }
+
+
+   // Record match of searched metamorph.
+   // Mapped metamorphs are read-only and not matched.
+   public void matchMetamorph(int index)
+   {
+      if (mappedMetamorphs == null)
+      {
+         matchMetamorph(metamorphs.get(index));
+      }
+   }
+
+
+   // Get response of searched metamorph.
+   public int getMetamorphResponse(int index)
+   {
+      if (mappedMetamorphs != null)
+      {
+         return(mappedMetamorphs.getResponse(index));
+      }
+      return(metamorphs.get(index).response);
+   }
+
+
+   // Get goal value of searched metamorph.
+   public float getMetamorphGoalValue(int index)
+   {
+      if (mappedMetamorphs != null)
+      {
+         return(mappedMetamorphs.getGoalValue(index));
+      }
+      return(metamorphs.get(index).goalValue);
+   }
+
+
+   // Evict metamorphs by eviction policy, sparing the current metamorph.
+   // Cause and effect indexes, and the current metamorph index, are remapped,
+   // and links to evicted metamorphs are removed.
+   public void evictMetamorphs(int count)
+   {
+      int n = metamorphs.size();
+
+      if (currentMetamorphIdx != -1)
+      {
+         count = Math.min(count, n - 1);
+      }
+      else
+      {
+         count = Math.min(count, n);
+      }
+      if (count <= 0)
+      {
+         return;
+      }
+
+      // Choose metamorphs to evict, earliest first on equal terms.
+      Integer[] order = new Integer[n];
+      for (int i = 0; i < n; i++)
+      {
+         order[i] = i;
+      }
+      Comparator<Integer> comparator;
+      switch (METAMORPH_EVICTION_POLICY)
+      {
+      case EVICT_LOWEST_GOAL_VALUE:
+         comparator = Comparator.comparingDouble((Integer i) -> metamorphs.get(i).goalValue)
+                         .thenComparingLong((Integer i) -> metamorphs.get(i).matchTime);
+         break;
+
+      case EVICT_LEAST_FREQUENTLY_MATCHED:
+         comparator = Comparator.comparingInt((Integer i) -> metamorphs.get(i).matchCount)
+                         .thenComparingLong((Integer i) -> metamorphs.get(i).matchTime);
+         break;
+
+      default:
+         comparator = Comparator.comparingLong((Integer i) -> metamorphs.get(i).matchTime);
+         break;
+      }
+      Arrays.sort(order, comparator.thenComparingInt((Integer i) -> i));
+      boolean[] evict = new boolean[n];
+      for (int i = 0, j = 0; j < count; i++)
+      {
+         if (order[i] != currentMetamorphIdx)
+         {
+            evict[order[i]] = true;
+            j++;
+         }
+      }
+
+      // Compact metamorphs and remap indexes.
+      int[] remap = new int[n];
+      ArrayList<Metamorph> kept = new ArrayList<Metamorph>(n - count);
+      for (int i = 0; i < n; i++)
+      {
+         if (evict[i])
+         {
+            remap[i] = -1;
+            metamorphs.get(i).release();
+         }
+         else
+         {
+            remap[i] = kept.size();
+            kept.add(metamorphs.get(i));
+         }
+      }
+      for (Metamorph m : kept)
+      {
+         remapIndexes(m.causeIndexes, remap);
+         remapIndexes(m.effectIndexes, remap);
+      }
+      metamorphs.clear();
+      metamorphs.addAll(kept);
+      if (currentMetamorphIdx != -1)
+      {
+         currentMetamorphIdx = remap[currentMetamorphIdx];
+      }
+      invalidateMetamorphHash();
+      metamorphIndex = null;
+      metamorphLinks = null;
+      metamorphVersion++;
+      metamorphsEvicted += count;
+      metamorphEvictions++;
+   }
+
+
+   // Remap metamorph indexes, removing evicted ones.
+   private void remapIndexes(IndexList indexes, int[] remap)
+   {
+      int j = 0;
+
+      for (int i = 0, k = indexes.size(); i < k; i++)
+      {
+         int idx = remap[indexes.get(i)];
+         if (idx != -1)
+         {
+            indexes.set(j++, idx);
+         }
+      }
+      indexes.truncate(j);
+   }
+
+
+   // Compact metamorphs by greedy clustering. In index order, each metamorph
+   // joins the cluster of the nearest prototype having its response within
+   // the radius, earliest first on equal terms, or else becomes the prototype
+   // of a new cluster. Prototypes keep the maximum goal value and the match
+   // statistics of their clusters, and take over the cause and effect links
+   // of their members. The current metamorph index is remapped to its prototype.
+   // Returns the number of metamorphs removed.
+   public int compactMetamorphs(float radius)
+   {
+      int n = metamorphs.size();
+
+      // Cluster.
+      int[] remap = new int[n];
+      ArrayList<Metamorph> prototypes = new ArrayList<Metamorph>();
+      HashMap<Integer, IndexList> responsePrototypes = new HashMap<Integer, IndexList>();
+      for (int i = 0; i < n; i++)
+      {
+         Metamorph m          = metamorphs.get(i);
+         IndexList candidates = responsePrototypes.get(m.response);
+         if (candidates == null)
+         {
+            candidates = new IndexList();
+            responsePrototypes.put(m.response, candidates);
+         }
+         int   p = -1;
+         float d = 0.0f;
+         for (int j = 0, k = candidates.size(); j < k; j++)
+         {
+            int   c  = candidates.get(j);
+            float d2 = prototypes.get(c).compare(m);
+            if ((d2 <= radius) && ((p == -1) || (d2 < d)))
+            {
+               p = c;
+               d = d2;
+            }
+         }
+         if (p == -1)
+         {
+            p = prototypes.size();
+            prototypes.add(m);
+            candidates.add(p);
+         }
+         else
+         {
+            Metamorph prototype = prototypes.get(p);
+            prototype.goalValue  = Math.max(prototype.goalValue, m.goalValue);
+            prototype.matchCount = prototype.matchCount + m.matchCount;
+            prototype.matchTime  = Math.max(prototype.matchTime, m.matchTime);
+            m.release();
+         }
+         remap[i] = p;
+      }
+      int count = n - prototypes.size();
+      if (count == 0)
+      {
+         return(0);
+      }
+
+      // Merge links.
+      LinkSet     links   = new LinkSet();
+      IndexList[] effects = new IndexList[prototypes.size()];
+      IndexList[] causes  = new IndexList[prototypes.size()];
+      for (int i = 0; i < effects.length; i++)
+      {
+         effects[i] = new IndexList();
+         causes[i]  = new IndexList();
+      }
+      for (int i = 0; i < n; i++)
+      {
+         IndexList effectIndexes = metamorphs.get(i).effectIndexes;
+         for (int j = 0, k = effectIndexes.size(); j < k; j++)
+         {
+            int cause  = remap[i];
+            int effect = remap[effectIndexes.get(j)];
+            if (links.add(cause, effect))
+            {
+               effects[cause].add(effect);
+               causes[effect].add(cause);
+            }
+         }
+      }
+      for (int i = 0; i < effects.length; i++)
+      {
+         Metamorph prototype = prototypes.get(i);
+         prototype.effectIndexes = effects[i];
+         prototype.causeIndexes  = causes[i];
+      }
+      metamorphs.clear();
+      metamorphs.addAll(prototypes);
+      if (currentMetamorphIdx != -1)
+      {
+         currentMetamorphIdx = remap[currentMetamorphIdx];
+      }
+      invalidateMetamorphHash();
+      metamorphIndex = null;
+      metamorphLinks = links;
+      metamorphVersion++;
+      metamorphsCompacted += count;
+      metamorphCompactions++;
+      return(count);
+   }
+
+
+   // Find index of metamorph having an identical morphognostic using the hash.
+   // Only the morphognostic is keyed, not the response, as with the distance scan:
+   // a metamorph recurring with another response is still merged into the first one.
+   // Returns -1 if not found.
+   public int findMetamorphHash(Metamorph metamorph)
+   {
+      syncMetamorphHash();
+      DensityKey key = DensityKey.create(metamorph);
+      if (key == null)
+      {
+         return(-1);
+      }
+      Integer idx = metamorphHash.get(key);
+      if (idx == null)
+      {
+         return(-1);
+      }
+      return(idx);
+   }
+
+
+   // Synchronize metamorph hash with metamorphs.
+   public void syncMetamorphHash()
+   {
+      int n = metamorphs.size();
+
+      if ((n < metamorphHashSize) ||
+          ((metamorphHashSize > 0) && (metamorphs.get(metamorphHashSize - 1) != metamorphHashLast)))
+      {
+         invalidateMetamorphHash();
+      }
+      for (int i = metamorphHashSize; i < n; i++)
+      {
+         Metamorph  m   = metamorphs.get(i);
+         DensityKey key = DensityKey.create(m);
+         if ((key != null) && !metamorphHash.containsKey(key))
+         {
+            metamorphHash.put(key, i);
+         }
+         metamorphHashLast = m;
+      }
+      metamorphHashSize = n;
+   }
+
+
+   // Invalidate metamorph hash.
+   public void invalidateMetamorphHash()
+   {
+      metamorphHash.clear();
+      metamorphHashSize = 0;
+      metamorphHashLast = null;
+   }
+
+
+   // Search metamorphs, or the mapped metamorph DB if open, for those a linear
+   // scan would find at or below its running minimum distance from the
+   // morphognostic, in scan order.
+   public void searchMetamorphs(Morphognostic morphognostic, MetamorphIndex.SearchResult result)
+   {
+      if (METAMORPH_CACHE_CAPACITY <= 0)
+      {
+         metamorphCache = null;
+         searchMetamorphsUncached(morphognostic, result);
+         return;
+      }
+      if ((metamorphCache == null) || (metamorphCacheVersion != metamorphVersion))
+      {
+         metamorphCache        = new LinkedHashMap<DensityKey, MetamorphIndex.SearchResult>(16, 0.75f, true)
+         {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<DensityKey, MetamorphIndex.SearchResult> eldest)
+            {
+               return(size() > METAMORPH_CACHE_CAPACITY);
+            }
+         };
+         metamorphCacheVersion = metamorphVersion;
+      }
+      DensityKey key = DensityKey.create(morphognostic);
+      if (key == null)
+      {
+         searchMetamorphsUncached(morphognostic, result);
+         return;
+      }
+      MetamorphIndex.SearchResult cached = metamorphCache.get(key);
+      if (cached != null)
+      {
+         metamorphCacheHits++;
+         result.copy(cached);
+         return;
+      }
+      metamorphCacheMisses++;
+      searchMetamorphsUncached(morphognostic, result);
+      if (metamorphCacheVersion == metamorphVersion)
+      {
+         cached = new MetamorphIndex.SearchResult();
+         cached.copy(result);
+         metamorphCache.put(DensityKey.create(key.densities.clone()), cached);
+      }
+   }
+
+
+   private void searchMetamorphsUncached(Morphognostic morphognostic, MetamorphIndex.SearchResult result)
+   {
+      if (mappedMetamorphs != null)
+      {
+         mappedMetamorphs.search(morphognostic, result);
+         return;
+      }
+      if ((metamorphIndex == null) || (metamorphIndex.getType() != METAMORPH_INDEX_TYPE))
+      {
+         metamorphIndex = createMetamorphIndex(METAMORPH_INDEX_TYPE);
+         metamorphVersion++;
+      }
+      metamorphIndex.sync(metamorphs);
+      metamorphIndex.search(morphognostic, result);
+   }
+
+
+   // Create metamorph index.
+   public static MetamorphIndex createMetamorphIndex(int type)
+   {
+      if (type == MetamorphIndex.PARTITIONED)
+      {
+         return(new PartitionedMetamorphIndex(METAMORPH_PARTITION_KEY));
+      }
+      return(MetamorphIndex.create(type));
+   }
+
+
+   // Morphognostic density vector hash key.
+   // Keys are equal exactly when morphognostics compare at zero distance:
+   // -0 is hashed as 0, and vectors having non-finite densities, which never
+   // compare at zero distance, are not keyed.
+   // The densities of a stored metamorph are keyed in place in the store.
+   public static class DensityKey
+   {
+      public float[]        densities;
+      public MetamorphStore store;
+      public int            storeRow;
+      public int            length;
+      public int            hash;
+
+      private DensityKey(float[] densities, MetamorphStore store, int storeRow, int length, int hash)
+      {
+         this.densities = densities;
+         this.store     = store;
+         this.storeRow  = storeRow;
+         this.length    = length;
+         this.hash      = hash;
+      }
+
+
+      // Create key for morphognostic, or null if not keyable.
+      public static DensityKey create(Morphognostic morphognostic)
+      {
+         return(create(morphognostic.getDensityVector()));
+      }
+
+
+      // Create key for density vector, or null if not keyable.
+      public static DensityKey create(float[] densities)
+      {
+         int hash = 1;
+
+         for (int i = 0; i < densities.length; i++)
+         {
+            float v = densities[i];
+            if (Float.isNaN(v) || Float.isInfinite(v))
+            {
+               return(null);
+            }
+            hash = 31 * hash + Float.floatToIntBits(v + 0.0f);
+         }
+         return(new DensityKey(densities, null, 0, densities.length, hash));
+      }
+
+
+      // Create key for metamorph, or null if not keyable.
+      public static DensityKey create(Metamorph metamorph)
+      {
+         if (metamorph.snapshot != null)
+         {
+            return(create(metamorph.snapshot.densities));
+         }
+         MetamorphStore store  = metamorph.store;
+         int            row    = metamorph.storeRow;
+         int            length = store.vectorLength;
+         int            hash   = 1;
+         for (int i = 0; i < length; i++)
+         {
+            float v = store.getDensity(row, i);
+            if (Float.isNaN(v) || Float.isInfinite(v))
+            {
+               return(null);
+            }
+            hash = 31 * hash + Float.floatToIntBits(v + 0.0f);
+         }
+         return(new DensityKey(null, store, row, length, hash));
+      }
+
+
+      // Get density.
+      public float getDensity(int index)
+      {
+         if (densities != null)
+         {
+            return(densities[index]);
+         }
+         return(store.getDensity(storeRow, index));
+      }
+
+
+      @Override
+      public int hashCode()
+      {
+         return(hash);
+      }
+
+
+      @Override
+      public boolean equals(Object obj)
+      {
+         if (!(obj instanceof DensityKey))
+         {
+            return(false);
+         }
+         DensityKey key = (DensityKey)obj;
+         if (key.length != length)
+         {
+            return(false);
+         }
+         for (int i = 0; i < length; i++)
+         {
+            if (getDensity(i) != key.getDensity(i))
+            {
+               return(false);
+            }
+         }
+         return(true);
+      }
    }
 
 
    // Propagate goal value.
+   // Discounted goal values are propagated to causes in decreasing value order,
+   // so each metamorph is first reached with its largest value and later entries
+   // are stale. Since discounting is monotonic, this gives the same values as
+   // raising causes recursively whenever a larger value reaches them.
    public void propagateGoalValue(Metamorph metamorph, float effectGoalValue)
    {
-      float v = effectGoalValue * HoneyBee.GOAL_VALUE_DISCOUNT_FACTOR;
+      PriorityQueue<GoalValueEntry> queue = new PriorityQueue<GoalValueEntry>();
 
-      if (v > metamorph.goalValue)
+      queue.add(new GoalValueEntry(metamorph, effectGoalValue * HoneyBee.GOAL_VALUE_DISCOUNT_FACTOR));
+      while (!queue.isEmpty())
       {
-         metamorph.goalValue = v;
-         for (int i = 0, j = metamorph.causeIndexes.size(); i < j; i++)
+         GoalValueEntry entry = queue.poll();
+         Metamorph      m     = entry.metamorph;
+         float          v     = entry.goalValue;
+         if (v > m.goalValue)
          {
-            propagateGoalValue(metamorphs.get(metamorph.causeIndexes.get(i)), v);
+            m.goalValue = v;
+            v          *= HoneyBee.GOAL_VALUE_DISCOUNT_FACTOR;
+            for (int i = 0, j = m.causeIndexes.size(); i < j; i++)
+            {
+               Metamorph cause = metamorphs.get(m.causeIndexes.get(i));
+               if (v > cause.goalValue)
+               {
+                  queue.add(new GoalValueEntry(cause, v));
+               }
+            }
          }
       }
    }
 
 
+   // Goal value propagation entry, ordered by decreasing goal value.
+   private static class GoalValueEntry implements Comparable<GoalValueEntry>
+   {
+      Metamorph metamorph;
+      float     goalValue;
+
+      GoalValueEntry(Metamorph metamorph, float goalValue)
+      {
+         this.metamorph = metamorph;
+         this.goalValue = goalValue;
+      }
+
+
+      @Override
+      public int compareTo(GoalValueEntry entry)
+      {
+         return(Float.compare(entry.goalValue, goalValue));
+      }
+   }
+
+
    // Train metamorph neural network.
    public void trainMetamorphNN()
    {
-      metamorphNN = new MetamorphNN(random);
+      metamorphNN        = new MetamorphNN(random);
+      metamorphNNversion = -1;
       metamorphNN.train(metamorphs);
+      metamorphNN.printEvaluation();
+      newNNdensities.clear();
+      newNNresponses.clear();
+   }
+
+
+   // Start training metamorph neural network in the background.
+   // With online training, an updatable network is updated with the metamorphs
+   // added since its training; otherwise a network is trained on all metamorphs.
+   // Returns false if training is already in progress or there is nothing new.
+   public boolean startMetamorphNNtraining()
+   {
+      if (isTrainingMetamorphNN())
+      {
+         return(false);
+      }
+      Runnable training;
+      if (MetamorphNN.ONLINE_TRAINING && (metamorphNN != null) && metamorphNN.isUpdatable())
+      {
+         // Copy new samples: their density vectors are immutable snapshot densities.
+         final int       count     = newNNdensities.size();
+         final float[][] densities = newNNdensities.toArray(new float[count][]);
+         final int[]     responses = new int[count];
+         if (count == 0)
+         {
+            return(false);
+         }
+         for (int i = 0; i < count; i++)
+         {
+            responses[i] = newNNresponses.get(i);
+         }
+         final MetamorphNN nn = metamorphNN.copy();
+         if (nn == null)
+         {
+            return(false);
+         }
+         nn.learningRandom = new Random(random.nextLong());
+         training          = new Runnable()
+         {
+            public void run()
+            {
+               nn.update(densities, responses, count);
+               trainedMetamorphNN.set(nn);
+            }
+         };
+      }
+      else
+      {
+         // Copy metamorphs: training reads only their densities and responses.
+         // Immutable snapshots are shared; stored densities are copied, since
+         // their rows may be reused as metamorphs are removed.
+         final ArrayList<Metamorph> trainingMetamorphs = new ArrayList<Metamorph>(metamorphs.size());
+         for (Metamorph m : metamorphs)
+         {
+            MorphognosticSnapshot snapshot = m.snapshot;
+            if (snapshot == null)
+            {
+               snapshot = new MorphognosticSnapshot(m.getMorphognostic());
+            }
+            trainingMetamorphs.add(new Metamorph(snapshot, m.response, m.goalValue, m.responseName));
+         }
+         // The network draws from its own random numbers, seeded here so that
+         // runs with a given random seed do not depend on thread timing.
+         final MetamorphNN nn = new MetamorphNN(new Random(random.nextInt()));
+         training = new Runnable()
+         {
+            public void run()
+            {
+               nn.train(trainingMetamorphs);
+               trainedMetamorphNN.set(nn);
+            }
+         };
+      }
+      newNNdensities.clear();
+      newNNresponses.clear();
+      metamorphNNtrainingVersion = metamorphVersion;
+      metamorphNNtrainingThread  = new Thread(training, "metamorph neural network training");
+      metamorphNNtrainingThread.setDaemon(true);
+      metamorphNNtrainingThread.start();
+      return(true);
+   }
+
+
+   // Metamorph neural network training in progress?
+   public boolean isTrainingMetamorphNN()
+   {
+      return((metamorphNNtrainingThread != null) && metamorphNNtrainingThread.isAlive());
+   }
+
+
+   // Publish metamorph neural network trained in the background.
+   public void publishMetamorphNN()
+   {
+      MetamorphNN nn = trainedMetamorphNN.getAndSet(null);
+
+      if (nn != null)
+      {
+         metamorphNN        = nn;
+         metamorphNNversion = metamorphNNtrainingVersion;
+         metamorphNN.printEvaluation();
+      }
+   }
+
+
+   // Metamorph neural network trained in the background on earlier metamorphs?
+   public boolean isMetamorphNNstale()
+   {
+      return((metamorphNN != null) && (metamorphNNversion != -1) && (metamorphNNversion != metamorphVersion));
+   }
+
+
+   // Wait for background metamorph neural network training to finish, and publish.
+   public void finishMetamorphNNtraining()
+   {
+      if (metamorphNNtrainingThread != null)
+      {
+         try
+         {
+            metamorphNNtrainingThread.join();
+         }
+         catch (InterruptedException e) {}
+      }
+      publishMetamorphNN();
    }
 
 
@@ -576,6 +1497,7 @@ public class World
       {
          metamorphNN = new MetamorphNN(random);
       }
+      metamorphNNversion = -1;
       metamorphNN.loadModel(filename);
    }
 
@@ -584,7 +1506,35 @@ public class World
    public void clearMetamorphs()
    {
       metamorphs.clear();
+      metamorphStore.clear();
+      newNNdensities.clear();
+      newNNresponses.clear();
       currentMetamorphIdx = -1;
+      invalidateMetamorphHash();
+      metamorphIndex = null;
+      metamorphLinks = null;
+      metamorphVersion++;
+   }
+
+
+   // Write metamorphs to memory-mapped metamorph DB file.
+   public void writeMappedMetamorphs(String filename) throws IOException
+   {
+      MappedMetamorphDB.write(filename, metamorphs);
+   }
+
+
+   // Open memory-mapped metamorph DB file.
+   public void openMappedMetamorphs(String filename) throws IOException
+   {
+      MappedMetamorphDB db = new MappedMetamorphDB(filename);
+
+      if ((db.size() > 0) && (db.vectorLength != bees[0].morphognostic.getDensityVector().length))
+      {
+         throw new IOException("Metamorph DB file " + filename + " does not match morphognostic parameters");
+      }
+      mappedMetamorphs = db;
+      metamorphVersion++;
    }
 
 
@@ -603,31 +1553,18 @@ public class World
       }
       if (metamorphs.size() > 0)
       {
-         Morphognostic morphognostic = metamorphs.get(0).morphognostic;
+         Morphognostic morphognostic = metamorphs.get(0).getMorphognostic();
          String        oldlinesep    = System.getProperty("line.separator");
          System.setProperty("line.separator", "\n");
          PrintWriter writer = new PrintWriter(new BufferedWriter(new OutputStreamWriter(output)));
-         for (int i = 0; i < morphognostic.NUM_NEIGHBORHOODS; i++)
+         for (String label : morphognostic.getDensityVectorLabels())
          {
-            int n = morphognostic.neighborhoods.get(i).sectors.length;
-            for (int x = 0; x < n; x++)
-            {
-               for (int y = 0; y < n; y++)
-               {
-                  for (int d = 0; d < morphognostic.eventDimensions; d++)
-                  {
-                     for (int j = 0; j < morphognostic.eventValueDimensions[d]; j++)
-                     {
-                        writer.print(i + "-" + x + "-" + y + "-" + d + "-" + j + ",");
-                     }
-                  }
-               }
-            }
+            writer.print(label + ",");
          }
          writer.println("response");
          for (Metamorph m : metamorphs)
          {
-            writer.println(morphognostic2csv(m.morphognostic) + "," + m.response);
+            writer.println(densities2csv(m.getDensityVector()) + "," + m.response);
          }
          writer.flush();
          writer.close();
@@ -640,34 +1577,23 @@ public class World
    // Flatten morphognostic to csv string.
    public String morphognostic2csv(Morphognostic morphognostic)
    {
-      String  output    = "";
-      boolean skipComma = true;
-      int     dx        = 0;
+      return(densities2csv(morphognostic.getDensityVector()));
+   }
 
-      for (int i = 0; i < morphognostic.NUM_NEIGHBORHOODS; i++)
+
+   // Flatten density vector to csv string.
+   public String densities2csv(float[] densities)
+   {
+      StringBuilder output = new StringBuilder();
+
+      for (int i = 0; i < densities.length; i++)
       {
-         Neighborhood neighborhood = morphognostic.neighborhoods.get(i);
-         float[][][] densities = neighborhood.rectifySectorValueDensities();
-         int n = neighborhood.sectors.length;
-         for (int j = 0, j2 = n * n; j < j2; j++)
+         if (i > 0)
          {
-            for (int d = dx, d2 = morphognostic.eventDimensions; d < d2; d++)
-            {
-               for (int k = 0, k2 = morphognostic.eventValueDimensions[d]; k < k2; k++)
-               {
-                  if (skipComma)
-                  {
-                     skipComma = false;
-                  }
-                  else
-                  {
-                     output += ",";
-                  }
-                  output += (densities[j][d][k] + "");
-               }
-            }
+            output.append(",");
          }
+         output.append(densities[i]);
       }
-      return(output);
+      return(output.toString());
    }
 }
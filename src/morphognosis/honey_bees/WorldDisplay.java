@@ -76,6 +76,9 @@ public class WorldDisplay extends JFrame
    public static final int MAX_STEP_DELAY = 150;
    public int              stepDelay      = MAX_STEP_DELAY;
 
+   // Metamorph neural network training in background.
+   public boolean trainingNN;
+
    // Quit.
    public boolean quit;
 
@@ -171,6 +174,14 @@ public class WorldDisplay extends JFrame
          beeDashboard.update();
       }
 
+      // Metamorph neural network training finished?
+      if (trainingNN && !world.isTrainingMetamorphNN())
+      {
+         trainingNN = false;
+         setMessage(null);
+         controls.trainNNcheck.setSelected(false);
+      }
+
       // Update display.
       display.update();
 
@@ -882,20 +893,12 @@ public class WorldDisplay extends JFrame
          {
             if ((JCheckBox)source == trainNNcheck)
             {
-               if (trainNNcheck.isSelected())
+               // Train in background, the display running until trained.
+               if (trainNNcheck.isSelected() && !trainingNN)
                {
-                  try
-                  {
-                     setMessage("Training metamorph neural network...");
-                     paint(getGraphics());
-                     world.trainMetamorphNN();
-                     setMessage(null);
-                  }
-                  catch (Exception e)
-                  {
-                     setMessage("Cannot train metamorph neural network: " + e.getMessage());
-                  }
-                  trainNNcheck.setSelected(false);
+                  world.startMetamorphNNtraining();
+                  trainingNN = true;
+                  setMessage("Training metamorph neural network...");
                }
                return;
             }
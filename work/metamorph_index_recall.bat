@@ -0,0 +1 @@
+java -cp ../bin/honey_bees.jar morphognosis.honey_bees.MetamorphIndexRecall %*
\ No newline at end of file